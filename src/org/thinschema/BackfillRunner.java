@@ -0,0 +1,302 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+
+package org.thinschema;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import org.thinschema.dataaccess.RowCache;
+import org.thinschema.dataaccess.TableChangeBus;
+import org.thinschema.diagnostics.SQLTrace;
+import org.thinschema.schemas.AbstractDBSchema;
+import org.thinschema.schemas.DBSchema;
+
+import java.util.HashMap;
+
+/**
+ * Runs the backfill steps declared in a schema. DatabaseManager records the
+ * steps of every version an upgrade goes through, and this class runs them
+ * afterwards, walking each table in batches of rowids, one short transaction
+ * per batch, so that other writers are never blocked for long. Progress is
+ * committed with each batch, so an interrupted backfill resumes where it
+ * stopped the next time it is run.
+ * <p/>
+ * Tables without a rowid cannot be walked in batches, so their steps run
+ * over the whole table at once: SQL steps get no parameters, and callbacks
+ * get Long.MIN_VALUE and Long.MAX_VALUE as their range.
+ * <p/>
+ * Usage, from a background thread:
+ * <pre>
+ * BackfillRunner runner = new BackfillRunner(dbManager);
+ * runner.register("hashEmails", callback);
+ * runner.run();
+ * </pre>
+ *
+ * @author atedja
+ */
+public class BackfillRunner {
+
+    public static final int DEFAULT_BATCH_SIZE = 500;
+
+    static final String TABLE = DatabaseManager.INTERNAL_PREFIX + "backfill";
+
+    /**
+     * A backfill step written in Java. It must only touch the rows of the
+     * batch, and must not begin or end transactions.
+     */
+    public interface Callback {
+        void run(SQLiteDatabase db, long fromRowId, long toRowId);
+    }
+
+    /**
+     * Receives the progress of a step after each batch.
+     */
+    public interface ProgressListener {
+        void onProgress(int version, String table, long processedRows, long totalRows);
+    }
+
+    private DatabaseManager dbManager;
+    private HashMap<String, Callback> callbacks;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private ProgressListener progressListener;
+    private RowCache rowCache;
+    private TableChangeBus changeBus;
+    private volatile boolean cancelled;
+
+    public BackfillRunner(DatabaseManager dbManager) {
+        this.dbManager = dbManager;
+        this.callbacks = new HashMap<String, Callback>();
+    }
+
+    /**
+     * Register the Java callback of the steps that name it.
+     *
+     * @param name     The name used as "callback" in the schema.
+     * @param callback The callback.
+     */
+    public void register(String name, Callback callback) {
+        callbacks.put(name, callback);
+    }
+
+    /**
+     * Set the number of rows processed per transaction.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Invalidate the backfilled tables in a RowCache after each batch.
+     *
+     * @param rowCache The cache, or null.
+     */
+    public void setRowCache(RowCache rowCache) {
+        this.rowCache = rowCache;
+    }
+
+    /**
+     * Report the backfilled tables to a TableChangeBus after each batch.
+     *
+     * @param changeBus The bus, or null.
+     */
+    public void setChangeBus(TableChangeBus changeBus) {
+        this.changeBus = changeBus;
+    }
+
+    /**
+     * Stop after the current batch. Can be called from any thread.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Run the pending steps, in the order of their versions. This blocks
+     * until they are done or cancelled, so it must not be called from the
+     * main thread.
+     *
+     * @return true if no step is pending anymore, false if cancelled.
+     */
+    public boolean run() {
+        cancelled = false;
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        if (!hasTable(db, "main")) {
+            return true;
+        }
+
+        while (!cancelled) {
+            Cursor cursor = SQLTrace.rawQuery(db, "SELECT version, step, tbl, sql, callback, last_rowid, processed FROM "
+                + TABLE + " ORDER BY version, step LIMIT 1;", null);
+            try {
+                if (!cursor.moveToFirst()) {
+                    return true;
+                }
+                runStep(db, cursor.getInt(0), cursor.getInt(1), cursor.getString(2),
+                    cursor.isNull(3) ? null : cursor.getString(3), cursor.isNull(4) ? null : cursor.getString(4),
+                    cursor.getLong(5), cursor.getLong(6));
+            } finally {
+                cursor.close();
+            }
+        }
+        return false;
+    }
+
+    private void runStep(SQLiteDatabase db, int version, int step, String table, String sql, String callbackName,
+                         long lastRowId, long processed) {
+        Callback callback = null;
+        if (sql == null) {
+            callback = callbacks.get(callbackName);
+            if (callback == null) {
+                throw new IllegalStateException("No backfill callback registered as " + callbackName);
+            }
+        }
+
+        String[] key = {String.valueOf(version), String.valueOf(step)};
+        if (!DatabaseManager.hasRowId(db, table)) {
+            runWholeTable(db, version, table, sql, callback, key);
+            return;
+        }
+
+        long total = processed + SQLTrace.longForQuery(db, "SELECT COUNT(*) FROM " + table + " WHERE rowid > ?;",
+            new String[]{String.valueOf(lastRowId)});
+
+        while (!cancelled) {
+            int count;
+            db.beginTransaction();
+            try {
+                // the next batch is the next batchSize rowids, found through the rowid B-tree
+                long toRowId = lastRowId;
+                count = 0;
+                Cursor cursor = SQLTrace.rawQuery(db, "SELECT MAX(rowid), COUNT(*) FROM (SELECT rowid FROM " + table
+                    + " WHERE rowid > ? ORDER BY rowid LIMIT " + batchSize + ");", new String[]{String.valueOf(lastRowId)});
+                try {
+                    if (cursor.moveToFirst() && cursor.getInt(1) > 0) {
+                        toRowId = cursor.getLong(0);
+                        count = cursor.getInt(1);
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                if (count == 0) {
+                    SQLTrace.delete(db, TABLE, "version = ? AND step = ?", key);
+                } else {
+                    if (callback != null) {
+                        callback.run(db, lastRowId, toRowId);
+                    } else {
+                        SQLTrace.execSQL(db, sql, new Object[]{lastRowId, toRowId});
+                    }
+                    processed += count;
+                    SQLTrace.execSQL(db, "UPDATE " + TABLE + " SET last_rowid = ?, processed = ? WHERE version = ? AND step = ?;",
+                        new Object[]{toRowId, processed, version, step});
+                }
+                db.setTransactionSuccessful();
+                lastRowId = toRowId;
+            } finally {
+                db.endTransaction();
+            }
+
+            if (count == 0) {
+                return;
+            }
+            onChanged(table);
+            if (progressListener != null) {
+                progressListener.onProgress(version, table, processed, Math.max(total, processed));
+            }
+        }
+    }
+
+    private void runWholeTable(SQLiteDatabase db, int version, String table, String sql, Callback callback,
+                               String[] key) {
+        long total;
+        db.beginTransaction();
+        try {
+            total = SQLTrace.longForQuery(db, "SELECT COUNT(*) FROM " + table + ";", null);
+            if (callback != null) {
+                callback.run(db, Long.MIN_VALUE, Long.MAX_VALUE);
+            } else {
+                SQLTrace.execSQL(db, sql);
+            }
+            SQLTrace.delete(db, TABLE, "version = ? AND step = ?", key);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        onChanged(table);
+        if (progressListener != null) {
+            progressListener.onProgress(version, table, total, total);
+        }
+    }
+
+    private void onChanged(String table) {
+        if (rowCache != null) {
+            rowCache.invalidate(table);
+        }
+        if (changeBus != null) {
+            changeBus.notifyChanged(table);
+        }
+    }
+
+    /**
+     * Record the steps of the versions after oldVersion as pending. Called
+     * within the upgrade's transaction, so that the steps are recorded if and
+     * only if the upgrade succeeds.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param schemaName     Name of the database to record them in, e.g. "main".
+     * @param dbSchema       The new schema.
+     * @param oldVersion     The version upgraded from.
+     */
+    static void schedule(SQLiteDatabase sqLiteDatabase, String schemaName, AbstractDBSchema dbSchema, int oldVersion) {
+        SQLTrace.execSQL(sqLiteDatabase, "CREATE TABLE IF NOT EXISTS " + schemaName + "." + TABLE
+            + " (version INTEGER NOT NULL, step INTEGER NOT NULL, tbl TEXT NOT NULL, sql TEXT, callback TEXT,"
+            + " last_rowid INTEGER NOT NULL, processed INTEGER NOT NULL DEFAULT 0, PRIMARY KEY (version, step));");
+
+        for (int i = 0, size = dbSchema.getBackfillCount(); i < size; ++i) {
+            int version = dbSchema.getBackfillVersion(i);
+            if (version > oldVersion && version <= dbSchema.getDatabaseVersion()) {
+                SQLTrace.execSQL(sqLiteDatabase, "INSERT OR IGNORE INTO " + schemaName + "." + TABLE
+                    + " (version, step, tbl, sql, callback, last_rowid) VALUES (?, ?, ?, ?, ?, ?);",
+                    new Object[]{version, i, dbSchema.getBackfillTable(i), dbSchema.getBackfillSql(i),
+                        dbSchema.getBackfillCallback(i), Long.MIN_VALUE});
+            }
+        }
+    }
+
+    /**
+     * Copy the steps still pending in one database to another, e.g. to a
+     * shadow file that replaces it.
+     */
+    static void copyPending(SQLiteDatabase sqLiteDatabase, String fromSchema, String toSchema) {
+        if (hasTable(sqLiteDatabase, fromSchema) && hasTable(sqLiteDatabase, toSchema)) {
+            SQLTrace.execSQL(sqLiteDatabase, "INSERT OR IGNORE INTO " + toSchema + "." + TABLE + " SELECT * FROM "
+                + fromSchema + "." + TABLE + ";");
+        }
+    }
+
+    private static boolean hasTable(SQLiteDatabase sqLiteDatabase, String schemaName) {
+        return SQLTrace.longForQuery(sqLiteDatabase, "SELECT COUNT(*) FROM " + schemaName
+            + ".sqlite_master WHERE type = 'table' AND name = ?;", new String[]{TABLE}) > 0;
+    }
+}
@@ -0,0 +1,275 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+
+package org.thinschema;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import org.thinschema.diagnostics.SQLTrace;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records the rowids of rows changed in a set of tables, using triggers, so
+ * that the changes can later be copied to another database with a few
+ * set-based statements.
+ *
+ * @author atedja
+ */
+class ChangeLog {
+
+    static final String TABLE = DatabaseManager.INTERNAL_PREFIX + "changes";
+
+    private static final String[] OPERATIONS = {"insert", "update", "delete"};
+    private static final String ROWID = "rowid";
+    private static final String SOURCE_ALIAS = "_src";
+    private static final String DESTINATION_ALIAS = "_dst";
+
+    /**
+     * Create the log table and the triggers that fill it.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param tables         Tables whose changes are to be recorded.
+     */
+    static void install(SQLiteDatabase sqLiteDatabase, List<String> tables) {
+        SQLTrace.execSQL(sqLiteDatabase, "CREATE TABLE IF NOT EXISTS " + TABLE
+            + " (seq INTEGER PRIMARY KEY AUTOINCREMENT, tbl TEXT NOT NULL, row INTEGER NOT NULL);");
+
+        for (String table : tables) {
+            String log = "INSERT INTO " + TABLE + " (tbl, row) VALUES ('" + table + "', ";
+            SQLTrace.execSQL(sqLiteDatabase, "CREATE TRIGGER IF NOT EXISTS " + getTriggerName(table, OPERATIONS[0])
+                + " AFTER INSERT ON " + table + " BEGIN " + log + "NEW.rowid); END;");
+            SQLTrace.execSQL(sqLiteDatabase, "CREATE TRIGGER IF NOT EXISTS " + getTriggerName(table, OPERATIONS[1])
+                + " AFTER UPDATE ON " + table + " BEGIN " + log + "OLD.rowid); " + log + "NEW.rowid); END;");
+            SQLTrace.execSQL(sqLiteDatabase, "CREATE TRIGGER IF NOT EXISTS " + getTriggerName(table, OPERATIONS[2])
+                + " AFTER DELETE ON " + table + " BEGIN " + log + "OLD.rowid); END;");
+        }
+    }
+
+    /**
+     * Drop the triggers and the log table.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param tables         Tables whose changes were recorded.
+     */
+    static void uninstall(SQLiteDatabase sqLiteDatabase, List<String> tables) {
+        for (String table : tables) {
+            for (String operation : OPERATIONS) {
+                SQLTrace.execSQL(sqLiteDatabase, "DROP TRIGGER IF EXISTS " + getTriggerName(table, operation) + ";");
+            }
+        }
+        SQLTrace.execSQL(sqLiteDatabase, "DROP TABLE IF EXISTS " + TABLE + ";");
+    }
+
+    /**
+     * Get the sequence number of the last recorded change.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param logSchema      The schema name of the database holding the log, e.g. "main".
+     * @return The last sequence number, or 0 if nothing was recorded.
+     */
+    static long getLastSeq(SQLiteDatabase sqLiteDatabase, String logSchema) {
+        long retval = 0;
+        Cursor cursor = null;
+        try {
+            cursor = SQLTrace.rawQuery(sqLiteDatabase, "SELECT MAX(seq) FROM " + logSchema + "." + TABLE + ";", null);
+            if (cursor.moveToFirst() && !cursor.isNull(0)) {
+                retval = cursor.getLong(0);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Copy the rows changed after a given sequence number from one database
+     * to another. Rows that no longer exist in the source are deleted, rows
+     * that exist in both are updated in place, and the others are inserted,
+     * so replaying a change more than once is harmless. Updating in place,
+     * rather than deleting and inserting again, keeps the destination's
+     * delete triggers, e.g. those that delete blob chunks, from firing for
+     * rows that still exist.
+     * <p/>
+     * When changed rows swapped a unique value, the first one updated would
+     * conflict with the other, which still has the old value. Destination
+     * rows whose unique value is now held by another row of the source are
+     * therefore deleted first, with their triggers, and inserted again from
+     * the source with the new rows.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance with both databases attached.
+     * @param logSchema      The schema name of the database holding the log.
+     * @param srcSchema      The schema name of the source database.
+     * @param dstSchema      The schema name of the destination database.
+     * @param columns        For each table, the columns of the destination,
+     *                       starting with rowid, and the expressions over the
+     *                       source that fill them.
+     * @param afterSeq       Only changes after this sequence number are copied.
+     * @return The sequence number of the last change copied.
+     */
+    static long replay(SQLiteDatabase sqLiteDatabase,
+                       String logSchema,
+                       String srcSchema,
+                       String dstSchema,
+                       Map<String, Map<String, String>> columns,
+                       long afterSeq) {
+        long lastSeq = getLastSeq(sqLiteDatabase, logSchema);
+        if (lastSeq <= afterSeq) {
+            return afterSeq;
+        }
+
+        Object[] bindArgs = new Object[]{afterSeq, lastSeq};
+        for (Map.Entry<String, Map<String, String>> entry : columns.entrySet()) {
+            String table = entry.getKey();
+            String changedRows = "rowid IN (SELECT row FROM " + logSchema + "." + TABLE
+                + " WHERE tbl = '" + table + "' AND seq > ? AND seq <= ?)";
+            String inSource = "EXISTS (SELECT 1 FROM " + srcSchema + "." + table + " AS " + SOURCE_ALIAS
+                + " WHERE " + SOURCE_ALIAS + ".rowid = " + table + ".rowid)";
+
+            SQLTrace.execSQL(sqLiteDatabase, "DELETE FROM " + dstSchema + "." + table
+                + " WHERE " + changedRows + " AND NOT " + inSource + ";", bindArgs);
+
+            for (List<String> unique : getUniqueIndexes(sqLiteDatabase, dstSchema, table)) {
+                List<String> matches = new ArrayList<String>(unique.size());
+                for (String column : unique) {
+                    String expression = entry.getValue().get(column);
+                    if (expression == null) {
+                        // not copied, so updates cannot collide on it
+                        matches = null;
+                        break;
+                    }
+                    matches.add("(" + expression + ") = " + table + "." + column);
+                }
+                if (matches != null) {
+                    SQLTrace.execSQL(sqLiteDatabase, "DELETE FROM " + dstSchema + "." + table + " WHERE " + changedRows
+                        + " AND EXISTS (SELECT 1 FROM " + srcSchema + "." + table + " AS " + SOURCE_ALIAS + " WHERE "
+                        + SOURCE_ALIAS + ".rowid <> " + table + ".rowid AND " + TextUtils.join(" AND ", matches) + ");",
+                        bindArgs);
+                }
+            }
+
+            List<String> assignments = new ArrayList<String>();
+            for (Map.Entry<String, String> column : entry.getValue().entrySet()) {
+                if (!ROWID.equals(column.getKey())) {
+                    assignments.add(column.getKey() + " = (SELECT " + column.getValue() + " FROM " + srcSchema + "." + table
+                        + " AS " + SOURCE_ALIAS + " WHERE " + SOURCE_ALIAS + ".rowid = " + table + ".rowid)");
+                }
+            }
+            if (!assignments.isEmpty()) {
+                SQLTrace.execSQL(sqLiteDatabase, "UPDATE " + dstSchema + "." + table + " SET " + TextUtils.join(", ", assignments)
+                    + " WHERE " + changedRows + " AND " + inSource + ";", bindArgs);
+            }
+
+            copy(sqLiteDatabase, srcSchema, dstSchema, table, entry.getValue(), changedRows
+                + " AND NOT EXISTS (SELECT 1 FROM " + dstSchema + "." + table + " AS " + DESTINATION_ALIAS
+                + " WHERE " + DESTINATION_ALIAS + ".rowid = " + table + ".rowid)", bindArgs);
+        }
+        return lastSeq;
+    }
+
+    /**
+     * Get the columns of each unique index of a table, including those that
+     * enforce UNIQUE and PRIMARY KEY constraints. Indexes on expressions are
+     * left out.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param schema         The schema name of the database holding the table.
+     * @param table          The table.
+     * @return The columns of each unique index.
+     */
+    private static List<List<String>> getUniqueIndexes(SQLiteDatabase sqLiteDatabase, String schema, String table) {
+        List<String> indexes = new ArrayList<String>();
+        Cursor cursor = SQLTrace.rawQuery(sqLiteDatabase, "PRAGMA " + schema + ".index_list(" + table + ");", null);
+        try {
+            int name = cursor.getColumnIndexOrThrow("name");
+            int unique = cursor.getColumnIndexOrThrow("unique");
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(unique) != 0) {
+                    indexes.add(cursor.getString(name));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        List<List<String>> retval = new ArrayList<List<String>>(indexes.size());
+        for (String index : indexes) {
+            List<String> indexColumns = new ArrayList<String>();
+            cursor = SQLTrace.rawQuery(sqLiteDatabase, "PRAGMA " + schema + ".index_info(" + index + ");", null);
+            try {
+                int name = cursor.getColumnIndexOrThrow("name");
+                while (cursor.moveToNext()) {
+                    if (cursor.isNull(name)) {
+                        indexColumns = null;
+                        break;
+                    }
+                    indexColumns.add(cursor.getString(name));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (indexColumns != null && !indexColumns.isEmpty()) {
+                retval.add(indexColumns);
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Copy rows of a table from one database to another with a single
+     * INSERT ... SELECT.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance with both databases attached.
+     * @param srcSchema      The schema name of the source database.
+     * @param dstSchema      The schema name of the destination database.
+     * @param table          The table.
+     * @param columns        The columns of the destination, and the expressions over the source that fill them.
+     * @param where          Condition on the source rows, or null to copy all of them.
+     * @param bindArgs       Arguments of the condition, or null.
+     */
+    static void copy(SQLiteDatabase sqLiteDatabase, String srcSchema, String dstSchema, String table,
+                     Map<String, String> columns, String where, Object[] bindArgs) {
+        SQLTrace.execSQL(sqLiteDatabase, "INSERT INTO " + dstSchema + "." + table + " (" + TextUtils.join(",", columns.keySet())
+            + ") SELECT " + TextUtils.join(",", columns.values()) + " FROM " + srcSchema + "." + table
+            + (where != null ? " WHERE " + where : "") + ";", bindArgs);
+    }
+
+    /**
+     * Add the rowid in front of a mapping of columns, so that copies keep it.
+     *
+     * @param columns The columns, and the expressions that fill them.
+     * @return A new mapping, starting with rowid.
+     */
+    static Map<String, String> withRowId(Map<String, String> columns) {
+        Map<String, String> retval = new LinkedHashMap<String, String>();
+        retval.put(ROWID, ROWID);
+        retval.putAll(columns);
+        return retval;
+    }
+
+    private static String getTriggerName(String table, String operation) {
+        return TABLE + "_" + table + "_" + operation;
+    }
+}
@@ -21,20 +21,29 @@ package org.thinschema;
 
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.text.TextUtils;
 import android.util.Log;
+import org.thinschema.diagnostics.SQLTrace;
+import org.thinschema.schemas.AbstractDBSchema;
 import org.thinschema.schemas.DBSchema;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 
 /**
  * DatabaseManager extends from Android's standard SQLiteOpenHelper.
- * It overrides only two methods: onCreate and onUpgrade.
+ * It overrides onCreate and onUpgrade, and onOpen to run maintenance and to
+ * attach the databases that the schema keeps in separate files.
  * <p/>
  * You may extend from DatabaseManager.
  *
@@ -49,8 +58,32 @@ public class DatabaseManager extends SQLiteOpenHelper {
     private static final String DT_DOUBLE = "double";
     private static final String DT_TEXT = "text";
     private static final String DT_STRING = "string";
+    private static final String DT_BLOB = "blob";
 
-    private DBSchema dbSchema;
+    // tables whose names start with this prefix belong to ThinSchema itself, and are never migrated
+    static final String INTERNAL_PREFIX = "_thinschema_";
+
+    // first versions of SQLite that support WITHOUT ROWID and STRICT tables, as sqlite_version()
+    private static final int SQLITE_WITHOUT_ROWID = 3008002;
+    private static final int SQLITE_STRICT = 3037000;
+
+    // first version of SQLite with PRAGMA foreign_key_check
+    private static final int SQLITE_FOREIGN_KEY_CHECK = 3007016;
+
+    private static final String AV_NONE = "none";
+    private static final String AV_FULL = "full";
+    private static final String AV_INCREMENTAL = "incremental";
+
+    private AbstractDBSchema dbSchema;
+    private Context context;
+    private boolean inMemory;
+    private DatabaseManager[] attachedManagers;
+
+    // version of the SQLite library, read on first use
+    private int sqliteVersion;
+
+    // tables created or migrated by the last upgrade, waiting for maintenance in onOpen
+    private List<String> maintenanceTables;
 
     public DatabaseManager(Context context, DBSchema databaseSchema) {
         this(context, databaseSchema, false);
@@ -59,16 +92,48 @@ public class DatabaseManager extends SQLiteOpenHelper {
     public DatabaseManager(Context context,
                            DBSchema databaseSchema,
                            boolean inMemory) {
-        super(context, inMemory ? null : databaseSchema.getDatabaseName(),
-            null, databaseSchema.getDatabaseVersion());
-        dbSchema = databaseSchema;
+        this(context, databaseSchema, inMemory ? null : databaseSchema.getDatabaseName());
+    }
+
+    /**
+     * Creates a DatabaseManager that stores the schema in the given file,
+     * instead of the file named by the schema.
+     *
+     * @param context        Context instance.
+     * @param databaseSchema Database schema.
+     * @param fileName       Name of the database file, or null for an in-memory database.
+     */
+    DatabaseManager(Context context,
+                    DBSchema databaseSchema,
+                    String fileName) {
+        super(context, fileName, null, databaseSchema.getDatabaseVersion());
+        dbSchema = AbstractDBSchema.of(databaseSchema);
+        this.context = context;
+        this.inMemory = fileName == null;
+
+        // an in-memory database has no file to attach to, its attached tables would be missing
+        if (this.inMemory && dbSchema.getAttachedCount() > 0) {
+            throw new IllegalArgumentException("Attached databases are not supported in in-memory mode");
+        }
+
+        // every attached database has its own file, version, journal and writer lock
+        attachedManagers = new DatabaseManager[dbSchema.getAttachedCount()];
+        for (int i = 0; i < attachedManagers.length; ++i) {
+            attachedManagers[i] = new DatabaseManager(context, dbSchema.getAttachedSchema(i), this.inMemory);
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
-        List<String> tables = dbSchema.getTableNames();
+        List<String> tables = sortByDependencies(dbSchema.getTableNames());
         for (String table : tables) {
             createTable(sqLiteDatabase, table);
+            createIndexes(sqLiteDatabase, table);
+            createTriggers(sqLiteDatabase, table);
+        }
+
+        for (int i = 0, size = dbSchema.getSummaryCount(); i < size; ++i) {
+            SummaryTable.create(sqLiteDatabase, dbSchema, i);
         }
     }
 
@@ -76,30 +141,34 @@ public class DatabaseManager extends SQLiteOpenHelper {
     public void onUpgrade(SQLiteDatabase sqLiteDatabase,
                           int oldVersion,
                           int newVersion) {
+        // Foreign keys are not enforced during an upgrade, since onOpen has not
+        // enabled them yet, so the copies run without per-row checks. With them
+        // on, dropping a migrated parent table would cascade to its children.
+        if (getPragma(sqLiteDatabase, "foreign_keys") != 0) {
+            throw new IllegalStateException("Foreign keys must be off while " + dbSchema.getDatabaseName()
+                + " is upgraded, enable them in onOpen instead of onConfigure");
+        }
+
         // get all table names from the old database
         List<String> oldTableNames = getTableNames(sqLiteDatabase);
 
+        // renaming a table must not rewrite the references to it in other tables
+        SQLTrace.execSQL(sqLiteDatabase, "PRAGMA legacy_alter_table = ON;");
         sqLiteDatabase.beginTransaction();
 
         try {
-            // get all table names from the new schema
-            List<String> newTableNames = dbSchema.getTableNames();
-
-            // Iterate through tables that exists in both old and new versions, and migrate them.
-            // oti = old table index, nti = new table index
-            for (int oti = oldTableNames.size() - 1; oti >= 0; --oti) {
-                for (int nti = newTableNames.size() - 1; nti >= 0; --nti) {
-                    if (oldTableNames.get(oti).equals(newTableNames.get(nti))) {
-                        // migrate table
-                        migrateTable(sqLiteDatabase, newTableNames.get(nti), true);
-
-                        // remove table from both arrays
-                        oldTableNames.remove(oti);
-                        newTableNames.remove(nti);
-
-                        // exit nti loop
-                        break;
-                    }
+            // get all table names from the new schema, parents before the tables referring to them
+            List<String> newTableNames = sortByDependencies(dbSchema.getTableNames());
+            List<String> rebuiltTables = new ArrayList<String>(newTableNames);
+
+            // Migrate tables that exist in both old and new versions, and create the others.
+            for (String newTable : newTableNames) {
+                if (oldTableNames.remove(newTable)) {
+                    migrateTable(sqLiteDatabase, newTable, true, oldVersion);
+                } else {
+                    createTable(sqLiteDatabase, newTable);
+                    createIndexes(sqLiteDatabase, newTable);
+                    createTriggers(sqLiteDatabase, newTable);
                 }
             }
 
@@ -108,32 +177,188 @@ public class DatabaseManager extends SQLiteOpenHelper {
                 deleteTable(sqLiteDatabase, oldTable);
             }
 
-            // newTableNames will contain tables to create
-            for (String newTable : newTableNames) {
-                createTable(sqLiteDatabase, newTable);
+            // summary tables are not part of the schema's tables, so the old ones were deleted above
+            for (int i = 0, size = dbSchema.getSummaryCount(); i < size; ++i) {
+                SummaryTable.create(sqLiteDatabase, dbSchema, i);
+                SummaryTable.rebuild(sqLiteDatabase, dbSchema, i);
+                rebuiltTables.add(dbSchema.getSummaryName(i));
             }
 
+            // backfills run later, in batches, through BackfillRunner
+            BackfillRunner.schedule(sqLiteDatabase, "main", dbSchema, oldVersion);
+
+            // one check of every foreign key, instead of one per copied row
+            checkForeignKeys(sqLiteDatabase, "main");
+
             sqLiteDatabase.setTransactionSuccessful();
-        } catch (Exception e) {
-            e.printStackTrace();
+            maintenanceTables = rebuiltTables;
         } finally {
+            // a failure propagates to getWritableDatabase(), which also rolls back the version
             sqLiteDatabase.endTransaction();
+            SQLTrace.execSQL(sqLiteDatabase, "PRAGMA legacy_alter_table = OFF;");
+        }
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase sqLiteDatabase) {
+        super.onOpen(sqLiteDatabase);
+        if (!sqLiteDatabase.isReadOnly()) {
+            if (!inMemory) {
+                ShadowMigration.cleanUp(sqLiteDatabase);
+            }
+            performMaintenance(sqLiteDatabase);
+        }
+        attachDatabases(sqLiteDatabase);
+
+        // SQLite leaves foreign keys off unless enabled on each connection
+        if (hasForeignKeys()) {
+            enableForeignKeys(sqLiteDatabase);
+        }
+    }
+
+    /**
+     * Enables foreign keys through setForeignKeyConstraintsEnabled where the
+     * platform has it (API 16), so that they are also enabled on the
+     * connections Android opens later for concurrent reads, or with PRAGMA
+     * foreign_keys on the given connection otherwise.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance, not in a transaction.
+     */
+    private static void enableForeignKeys(SQLiteDatabase sqLiteDatabase) {
+        try {
+            SQLiteDatabase.class.getMethod("setForeignKeyConstraintsEnabled", boolean.class)
+                .invoke(sqLiteDatabase, true);
+            return;
+        } catch (NoSuchMethodException e) {
+            // older platform, only the primary connection exists
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        SQLTrace.execSQL(sqLiteDatabase, "PRAGMA foreign_keys = ON;");
+    }
+
+    /**
+     * Get the DatabaseManager of an attached database, e.g. to run its
+     * maintenance or to write to it without locking the primary database.
+     *
+     * @param alias The alias of the attached database.
+     * @return The DatabaseManager, or null if there is no such attached database.
+     */
+    public DatabaseManager getAttachedDatabaseManager(String alias) {
+        for (int i = 0; i < attachedManagers.length; ++i) {
+            if (dbSchema.getAttachedAlias(i).equals(alias)) {
+                return attachedManagers[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates or migrates every attached database through its own
+     * DatabaseManager, then attaches its file to this connection. Only the
+     * files whose version changed are migrated.
+     * <p/>
+     * An attached database only exists on the connection that attached it,
+     * so Android turns write-ahead logging off for a database with attached
+     * files, and refuses to turn it on again. A schema with attached
+     * databases therefore always uses a rollback journal on its primary file.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     */
+    private void attachDatabases(SQLiteDatabase sqLiteDatabase) {
+        for (int i = 0; i < attachedManagers.length; ++i) {
+            DBSchema attachedSchema = dbSchema.getAttachedSchema(i);
+            String alias = dbSchema.getAttachedAlias(i);
+            try {
+                attachedManagers[i].getWritableDatabase();
+                attachedManagers[i].close();
+
+                String path = context.getDatabasePath(attachedSchema.getDatabaseName()).getPath();
+                SQLTrace.execSQL(sqLiteDatabase, "ATTACH DATABASE " + DatabaseUtils.sqlEscapeString(path) + " AS " + alias + ";");
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Reclaims up to the given number of free pages. This only has an effect
+     * when the schema sets autoVacuum to "incremental", and is meant to be
+     * called in small steps while the application is idle.
+     *
+     * @param maxPages Maximum number of pages to release.
+     * @return The number of free pages left in the database.
+     */
+    public long incrementalVacuum(int maxPages) {
+        SQLiteDatabase sqLiteDatabase = getWritableDatabase();
+        SQLTrace.execSQL(sqLiteDatabase, "PRAGMA incremental_vacuum(" + maxPages + ");");
+        return getPragma(sqLiteDatabase, "freelist_count");
+    }
+
+    /**
+     * Applies the auto_vacuum mode from the schema, and after an upgrade
+     * analyzes the rebuilt tables and runs a full VACUUM if the database is
+     * more fragmented than the schema allows. VACUUM cannot run inside a
+     * transaction, which is why this is done here and not in onUpgrade.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     */
+    private void performMaintenance(SQLiteDatabase sqLiteDatabase) {
+        try {
+            boolean vacuumed = false;
+
+            // changing auto_vacuum on a database that already has tables requires a VACUUM. Android
+            // creates android_metadata before any callback of the helper, so this also runs once
+            // for a new database, while its tables are still empty and the VACUUM is cheap.
+            int autoVacuum = getAutoVacuumMode(dbSchema.getAutoVacuum());
+            if (autoVacuum >= 0 && getPragma(sqLiteDatabase, "auto_vacuum") != autoVacuum) {
+                SQLTrace.execSQL(sqLiteDatabase, "PRAGMA auto_vacuum = " + autoVacuum + ";");
+                SQLTrace.execSQL(sqLiteDatabase, "VACUUM;");
+                vacuumed = true;
+            }
+
+            if (maintenanceTables == null) {
+                return;
+            }
+
+            if (dbSchema.getAnalyzeAfterMigration()) {
+                for (String table : maintenanceTables) {
+                    SQLTrace.execSQL(sqLiteDatabase, "ANALYZE " + table + ";");
+                }
+            }
+
+            double threshold = dbSchema.getVacuumThreshold();
+            if (!vacuumed && threshold > 0) {
+                long pageCount = getPragma(sqLiteDatabase, "page_count");
+                long freePages = getPragma(sqLiteDatabase, "freelist_count");
+                if (pageCount > 0 && (double) freePages / pageCount > threshold) {
+                    SQLTrace.execSQL(sqLiteDatabase, "VACUUM;");
+                }
+            }
+
+            maintenanceTables = null;
+        } catch (Exception e) {
+            e.printStackTrace();
         }
     }
 
     /**
      * Migrates a table to the new schema. A new table is created, data from
      * old table is copied over to the new table, then the old table is deleted.
+     * Indexes and triggers are created last, after the old table and its
+     * indexes are gone, so that their names can be reused and the copy does not
+     * update them row by row.
      *
      * @param sqLiteDatabase SQLiteDatabase instance.
      * @param tableName      The name of the table to be migrated.
      * @param migrateData    true if data should be migrated. false will erase
      *                       existing data.
+     * @param oldVersion     The version the database is migrated from.
      */
-    private void migrateTable(SQLiteDatabase sqLiteDatabase, String tableName, boolean migrateData) {
+    private void migrateTable(SQLiteDatabase sqLiteDatabase, String tableName, boolean migrateData, int oldVersion) {
         // rename old table to a new name
         String oldTableName = tableName + "_old";
-        sqLiteDatabase.execSQL("ALTER TABLE " + tableName + " RENAME TO " + oldTableName + ";");
+        SQLTrace.execSQL(sqLiteDatabase, "ALTER TABLE " + tableName + " RENAME TO " + oldTableName + ";");
 
         // create the new table
         createTable(sqLiteDatabase, tableName);
@@ -143,23 +368,70 @@ public class DatabaseManager extends SQLiteOpenHelper {
             // grab the column names of the old table
             List<String> oldColumns = getColumnNames(sqLiteDatabase, oldTableName);
 
-            // column names of the new table
-            List<String> newColumns = dbSchema.getColumnNames(tableName);
+            // work out where each new column gets its data from
+            Map<String, String> mapping = getColumnMapping(dbSchema, tableName, oldColumns, oldVersion);
 
-            // intersect, removes old column names that are no longer specified
-            oldColumns.retainAll(newColumns);
+            // blob chunks are owned by rowid, so rowids are kept even without an INTEGER PRIMARY KEY
+            if (ShadowMigration.getRowIdAlias(dbSchema, tableName) == null
+                && hasRowId(sqLiteDatabase, oldTableName) && hasRowId(sqLiteDatabase, tableName)) {
+                mapping = ChangeLog.withRowId(mapping);
+            }
 
-            // construct a list of comma-delimited column names
-            String columns = TextUtils.join(",", oldColumns);
+            // construct lists of comma-delimited column names and expressions
+            String columns = TextUtils.join(",", mapping.keySet());
+            String values = TextUtils.join(",", mapping.values());
 
-            // copy data from old table to the new table
-            String sql = "INSERT INTO " + tableName + " (" + columns + ") SELECT " + columns + " FROM " + oldTableName + ";";
+            // copy data from old table to the new table, transforming it on the way
+            String sql = "INSERT INTO " + tableName + " (" + columns + ") SELECT " + values + " FROM " + oldTableName + ";";
             Log.d("", sql);
-            sqLiteDatabase.execSQL(sql);
+            SQLTrace.execSQL(sqLiteDatabase, sql);
         }
 
         // delete old table
         deleteTable(sqLiteDatabase, oldTableName);
+
+        createIndexes(sqLiteDatabase, tableName);
+        createTriggers(sqLiteDatabase, tableName);
+    }
+
+    /**
+     * Work out how the columns of a migrated table are filled from the old
+     * table. A column is filled from its expression if it has one that applies
+     * to the old version, otherwise from the old column of the same name, or
+     * failing that from the old column it was renamed from. Columns with no
+     * source are left to their default value.
+     *
+     * @param dbSchema   Database schema.
+     * @param tableName  The name of the table being migrated.
+     * @param oldColumns The column names of the old table.
+     * @param oldVersion The version the database is migrated from.
+     * @return The columns of the new table that are filled, mapped to the
+     * expressions over the old table that fill them, in column order.
+     */
+    static Map<String, String> getColumnMapping(AbstractDBSchema dbSchema,
+                                                String tableName,
+                                                List<String> oldColumns,
+                                                int oldVersion) {
+        Map<String, String> mapping = new LinkedHashMap<String, String>();
+        for (int i = 0, size = dbSchema.getColumnCount(tableName); i < size; ++i) {
+            String column = dbSchema.getColumnName(tableName, i);
+            String source = dbSchema.getColumnSource(tableName, i);
+            String expression = dbSchema.getColumnExpression(tableName, i);
+
+            // without a version, an expression only fills a column the old table doesn't have
+            int expressionVersion = dbSchema.getColumnExpressionVersion(tableName, i);
+            boolean useExpression = expression != null
+                && (expressionVersion > 0 ? oldVersion < expressionVersion : !oldColumns.contains(column));
+
+            if (useExpression) {
+                mapping.put(column, "(" + expression + ")");
+            } else if (oldColumns.contains(column)) {
+                mapping.put(column, column);
+            } else if (source != null && oldColumns.contains(source)) {
+                mapping.put(column, source);
+            }
+        }
+        return mapping;
     }
 
     /**
@@ -169,6 +441,30 @@ public class DatabaseManager extends SQLiteOpenHelper {
      * @param tableName      The name of the table to be created.
      */
     private void createTable(SQLiteDatabase sqLiteDatabase, String tableName) {
+        int tableIndex = getTableIndex(tableName);
+        boolean strict = dbSchema.getTableStrict(tableIndex);
+        boolean withoutRowId = dbSchema.getTableWithoutRowId(tableIndex);
+
+        // STRICT and WITHOUT ROWID are only understood by newer versions of SQLite
+        int sqliteVersion = getSqliteVersion(sqLiteDatabase);
+        if (strict && sqliteVersion < SQLITE_STRICT) {
+            Log.w("DatabaseManager", "STRICT is not supported by this SQLite, creating " + tableName + " without it");
+            strict = false;
+        }
+        if (withoutRowId && sqliteVersion < SQLITE_WITHOUT_ROWID) {
+            Log.w("DatabaseManager", "WITHOUT ROWID is not supported by this SQLite, creating " + tableName + " with it");
+            withoutRowId = false;
+        }
+
+        // a primary key over several columns is declared after the columns
+        List<String> primaryKey = new ArrayList<String>();
+        for (int i = 0, size = dbSchema.getColumnCount(tableName); i < size; ++i) {
+            if (dbSchema.getColumnIsPrimary(tableName, i)) {
+                primaryKey.add(dbSchema.getColumnName(tableName, i));
+            }
+        }
+        boolean compositeKey = primaryKey.size() > 1;
+
         StringBuilder sb = new StringBuilder(64);
         sb.append("CREATE TABLE IF NOT EXISTS ").append(tableName).append(" (");
 
@@ -189,14 +485,20 @@ public class DatabaseManager extends SQLiteOpenHelper {
                 || DT_FLOAT.equalsIgnoreCase(type)
                 || DT_DOUBLE.equalsIgnoreCase(type)) {
                 sb.append(" REAL");
+            } else if (DT_BLOB.equalsIgnoreCase(type)) {
+                sb.append(" BLOB");
+            } else if (strict) {
+                // STRICT tables need a type on every column
+                sb.append(" ANY");
             }
 
-            if (dbSchema.getColumnIsPrimary(tableName, i)) {
+            if (dbSchema.getColumnIsPrimary(tableName, i) && !compositeKey) {
                 sb.append(" PRIMARY KEY");
-            }
 
-            if (dbSchema.getColumnAutoIncrement(tableName, i)) {
-                sb.append(" AUTOINCREMENT");
+                // AUTOINCREMENT needs a rowid to increment
+                if (dbSchema.getColumnAutoIncrement(tableName, i) && !withoutRowId) {
+                    sb.append(" AUTOINCREMENT");
+                }
             }
 
             if (dbSchema.getColumnNotNull(tableName, i)) {
@@ -207,10 +509,84 @@ public class DatabaseManager extends SQLiteOpenHelper {
             if (defaultValue != null && defaultValue.length() > 0) {
                 sb.append(" DEFAULT ").append(defaultValue);
             }
+
+            String parentTable = dbSchema.getColumnReferencesTable(tableName, i);
+            if (parentTable != null) {
+                sb.append(" REFERENCES ").append(parentTable);
+                String parentColumn = dbSchema.getColumnReferencesColumn(tableName, i);
+                if (parentColumn != null) {
+                    sb.append(" (").append(parentColumn).append(")");
+                }
+                String onDelete = dbSchema.getColumnOnDelete(tableName, i);
+                if (onDelete != null) {
+                    sb.append(" ON DELETE ").append(onDelete.toUpperCase());
+                }
+            }
+        }
+
+        if (compositeKey) {
+            sb.append(", PRIMARY KEY (").append(TextUtils.join(",", primaryKey)).append(")");
+        }
+        sb.append(")");
+
+        List<String> options = new ArrayList<String>(2);
+        if (withoutRowId) {
+            if (primaryKey.isEmpty()) {
+                Log.w("DatabaseManager", "WITHOUT ROWID needs a primary key, creating " + tableName + " with a rowid");
+            } else {
+                options.add("WITHOUT ROWID");
+            }
+        }
+        if (strict) {
+            options.add("STRICT");
+        }
+        if (!options.isEmpty()) {
+            sb.append(' ').append(TextUtils.join(", ", options));
         }
 
-        sb.append(");");
-        sqLiteDatabase.execSQL(sb.toString());
+        sb.append(";");
+        SQLTrace.execSQL(sqLiteDatabase, sb.toString());
+    }
+
+    /**
+     * Creates the indexes of a table from a JSON schema.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param tableName      The name of the table whose indexes are to be created.
+     */
+    private void createIndexes(SQLiteDatabase sqLiteDatabase, String tableName) {
+        for (int i = 0, size = dbSchema.getIndexCount(tableName); i < size; ++i) {
+            StringBuilder sb = new StringBuilder(64);
+            sb.append("CREATE ");
+            if (dbSchema.getIndexUnique(tableName, i)) {
+                sb.append("UNIQUE ");
+            }
+            sb.append("INDEX IF NOT EXISTS ").append(dbSchema.getIndexName(tableName, i))
+                .append(" ON ").append(tableName)
+                .append(" (").append(TextUtils.join(",", dbSchema.getIndexColumns(tableName, i))).append(");");
+            SQLTrace.execSQL(sqLiteDatabase, sb.toString());
+        }
+    }
+
+    /**
+     * Creates the triggers that delete the chunks of streamed blob columns
+     * together with the row that owns them.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param tableName      The name of the table whose triggers are to be created.
+     */
+    private void createTriggers(SQLiteDatabase sqLiteDatabase, String tableName) {
+        // chunks are owned by rowid
+        if (dbSchema.getTableWithoutRowId(getTableIndex(tableName))) {
+            return;
+        }
+        for (int i = 0, size = dbSchema.getColumnCount(tableName); i < size; ++i) {
+            String chunkTable = dbSchema.getColumnChunkTable(tableName, i);
+            if (chunkTable != null) {
+                SQLTrace.execSQL(sqLiteDatabase, "CREATE TRIGGER IF NOT EXISTS " + chunkTable + "_delete AFTER DELETE ON " + tableName
+                    + " BEGIN DELETE FROM " + chunkTable + " WHERE owner_id = OLD.rowid; END;");
+            }
+        }
     }
 
     /**
@@ -220,7 +596,23 @@ public class DatabaseManager extends SQLiteOpenHelper {
      * @param tableName      The name of the table to be deleted.
      */
     private void deleteTable(SQLiteDatabase sqLiteDatabase, String tableName) {
-        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + tableName + ";");
+        SQLTrace.execSQL(sqLiteDatabase, "DROP TABLE IF EXISTS " + tableName + ";");
+    }
+
+    /**
+     * Check if a table has a rowid, that is, it was not created WITHOUT ROWID.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param tableName      Name of the table.
+     * @return true if the table has a rowid.
+     */
+    static boolean hasRowId(SQLiteDatabase sqLiteDatabase, String tableName) {
+        try {
+            SQLTrace.longForQuery(sqLiteDatabase, "SELECT COUNT(rowid) FROM (SELECT rowid FROM " + tableName + " LIMIT 1);", null);
+            return true;
+        } catch (SQLiteException e) {
+            return false;
+        }
     }
 
     /**
@@ -231,12 +623,13 @@ public class DatabaseManager extends SQLiteOpenHelper {
      * @param tableName      Name of the table.
      * @return A list of column names,
      */
-    private static List<String> getColumnNames(SQLiteDatabase sqLiteDatabase,
-                                               String tableName) {
+    static List<String> getColumnNames(SQLiteDatabase sqLiteDatabase,
+                                       String tableName) {
         List<String> retval = null;
         Cursor cursor = null;
         try {
-            cursor = sqLiteDatabase.query(tableName, null, null, null, null, null, null);
+            // only the column names are needed, so don't fetch any rows
+            cursor = SQLTrace.query(sqLiteDatabase, tableName, null, null, null, null, null, null, "0");
             if (cursor != null) {
                 retval = new ArrayList<String>(Arrays.asList(cursor.getColumnNames()));
             }
@@ -251,19 +644,228 @@ public class DatabaseManager extends SQLiteOpenHelper {
     }
 
 
-    private static List<String> getTableNames(SQLiteDatabase sqLiteDatabase) {
+    /**
+     * Order tables so that every table comes after the tables its foreign
+     * keys refer to. Tables in a cycle keep their relative order.
+     *
+     * @param tables Names of the tables.
+     * @return The ordered names.
+     */
+    private List<String> sortByDependencies(List<String> tables) {
+        List<String> sorted = new ArrayList<String>(tables.size());
+        Set<String> visited = new HashSet<String>();
+        for (String table : tables) {
+            addWithParents(table, tables, sorted, visited);
+        }
+        return sorted;
+    }
+
+    private void addWithParents(String table, List<String> tables, List<String> sorted, Set<String> visited) {
+        if (!visited.add(table)) {
+            return;
+        }
+        for (int i = 0, size = dbSchema.getColumnCount(table); i < size; ++i) {
+            String parentTable = dbSchema.getColumnReferencesTable(table, i);
+            if (parentTable != null && tables.contains(parentTable)) {
+                addWithParents(parentTable, tables, sorted, visited);
+            }
+        }
+        sorted.add(table);
+    }
+
+    private boolean hasForeignKeys() {
+        for (String table : dbSchema.getTableNames()) {
+            for (int i = 0, size = dbSchema.getColumnCount(table); i < size; ++i) {
+                if (dbSchema.getColumnReferencesTable(table, i) != null) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Check every foreign key of a database with this schema.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param schemaName     The schema name of the database, e.g. "main".
+     * @throws SQLiteException if a row refers to a parent row that does not exist.
+     */
+    void checkForeignKeys(SQLiteDatabase sqLiteDatabase, String schemaName) {
+        if (!hasForeignKeys()) {
+            return;
+        }
+        if (getSqliteVersion(sqLiteDatabase) < SQLITE_FOREIGN_KEY_CHECK) {
+            checkForeignKeysByJoin(sqLiteDatabase, schemaName);
+            return;
+        }
+        Cursor cursor = SQLTrace.rawQuery(sqLiteDatabase, "PRAGMA " + schemaName + ".foreign_key_check;", null);
+        try {
+            if (cursor.moveToFirst()) {
+                throw new SQLiteException("Foreign key violation: row " + cursor.getString(1) + " of "
+                    + cursor.getString(0) + " refers to a missing row of " + cursor.getString(2));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Check the foreign keys declared in the schema with one LEFT JOIN per
+     * foreign key column, for SQLite versions without PRAGMA foreign_key_check.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param schemaName     The schema name of the database.
+     * @throws SQLiteException if a row refers to a parent row that does not exist.
+     */
+    private void checkForeignKeysByJoin(SQLiteDatabase sqLiteDatabase, String schemaName) {
+        for (String table : dbSchema.getTableNames()) {
+            for (int i = 0, size = dbSchema.getColumnCount(table); i < size; ++i) {
+                String parentTable = dbSchema.getColumnReferencesTable(table, i);
+                if (parentTable == null) {
+                    continue;
+                }
+                String parentColumn = dbSchema.getColumnReferencesColumn(table, i);
+                if (parentColumn == null) {
+                    parentColumn = getPrimaryKeyColumn(parentTable);
+                }
+                String column = dbSchema.getColumnName(table, i);
+                Cursor cursor = SQLTrace.rawQuery(sqLiteDatabase, "SELECT c." + column + " FROM " + schemaName + "." + table
+                    + " c LEFT JOIN " + schemaName + "." + parentTable + " p ON c." + column + " = p." + parentColumn + " WHERE c." + column
+                    + " IS NOT NULL AND p." + parentColumn + " IS NULL LIMIT 1;", null);
+                try {
+                    if (cursor.moveToFirst()) {
+                        throw new SQLiteException("Foreign key violation: " + table + "." + column + " = "
+                            + cursor.getString(0) + " refers to a missing row of " + parentTable);
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the column a foreign key without a parent column refers to.
+     *
+     * @param tableName Name of the parent table.
+     * @return The single primary key column of the table, or rowid if it has none.
+     */
+    private String getPrimaryKeyColumn(String tableName) {
+        for (int i = 0, size = dbSchema.getColumnCount(tableName); i < size; ++i) {
+            if (dbSchema.getColumnIsPrimary(tableName, i)) {
+                return dbSchema.getColumnName(tableName, i);
+            }
+        }
+        return "rowid";
+    }
+
+    /**
+     * Find the index of a table in the schema.
+     *
+     * @param tableName Name of the table.
+     * @return The index of the table, or -1 if it is not in the schema.
+     */
+    private int getTableIndex(String tableName) {
+        for (int i = 0, size = dbSchema.getTableCount(); i < size; ++i) {
+            if (dbSchema.getTableName(i).equals(tableName)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the version of the SQLite library, e.g. 3037002 for 3.37.2.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @return The version number, or 0 if it cannot be read.
+     */
+    private int getSqliteVersion(SQLiteDatabase sqLiteDatabase) {
+        if (sqliteVersion == 0) {
+            Cursor cursor = null;
+            try {
+                cursor = SQLTrace.rawQuery(sqLiteDatabase, "SELECT sqlite_version();", null);
+                if (cursor.moveToFirst()) {
+                    String[] parts = cursor.getString(0).split("\\.");
+                    for (int i = 0; i < 3; ++i) {
+                        sqliteVersion = sqliteVersion * 1000 + (i < parts.length ? Integer.parseInt(parts[i]) : 0);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        return sqliteVersion;
+    }
+
+    /**
+     * Convert an auto_vacuum mode name to the value expected by the pragma.
+     *
+     * @param mode "none", "full", or "incremental".
+     * @return The pragma value, or -1 if the mode is not specified.
+     */
+    private static int getAutoVacuumMode(String mode) {
+        if (AV_NONE.equalsIgnoreCase(mode)) {
+            return 0;
+        } else if (AV_FULL.equalsIgnoreCase(mode)) {
+            return 1;
+        } else if (AV_INCREMENTAL.equalsIgnoreCase(mode)) {
+            return 2;
+        }
+        return -1;
+    }
+
+    /**
+     * Read the numeric value of a pragma.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param pragma         Name of the pragma, e.g. "page_count".
+     * @return The value of the pragma, or 0 if it cannot be read.
+     */
+    private static long getPragma(SQLiteDatabase sqLiteDatabase, String pragma) {
+        long retval = 0;
+        Cursor cursor = null;
+        try {
+            cursor = SQLTrace.rawQuery(sqLiteDatabase, "PRAGMA " + pragma + ";", null);
+            if (cursor.moveToFirst()) {
+                retval = cursor.getLong(0);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Get a list of table names from the given database, without system tables
+     * and ThinSchema's own tables.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @return A list of table names, or null if the database has no tables.
+     */
+    static List<String> getTableNames(SQLiteDatabase sqLiteDatabase) {
         List<String> tableNames = null;
         Cursor cursor = null;
 
         try {
-            cursor = sqLiteDatabase.rawQuery("SELECT name FROM sqlite_master WHERE type='table' ORDER BY name;", null);
+            cursor = SQLTrace.rawQuery(sqLiteDatabase, "SELECT name FROM sqlite_master WHERE type='table' ORDER BY name;", null);
             if (cursor.moveToFirst()) {
                 tableNames = new ArrayList<String>();
                 while (!cursor.isAfterLast()) {
                     String tableName = cursor.getString(0);
-                    // ignore system tables
+                    // ignore system tables, including sqlite_sequence and the sqlite_stat tables of ANALYZE
                     if (!"android_metadata".equals(tableName) &&
-                        !"sqlite_sequence".equals(tableName)) {
+                        !tableName.startsWith("sqlite_") &&
+                        !tableName.startsWith(INTERNAL_PREFIX)) {
                         tableNames.add(tableName);
                     }
                     cursor.moveToNext();
@@ -0,0 +1,167 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+
+package org.thinschema;
+
+import android.content.Context;
+import org.thinschema.schemas.DBSchema;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Opens several databases concurrently, each with its own DatabaseManager,
+ * so that creating and migrating them takes about as long as the slowest one
+ * instead of the sum of all. Each database is a separate file with its own
+ * writer lock, so they do not contend with each other.
+ * <p/>
+ * Usage, from a background thread:
+ * <pre>
+ * DatabaseStartup startup = new DatabaseStartup(context);
+ * startup.add(mainSchema);
+ * startup.add(cacheSchema);
+ * List&lt;DatabaseStartup.Result&gt; results = startup.run();
+ * </pre>
+ *
+ * @author atedja
+ */
+public class DatabaseStartup {
+
+    /**
+     * The outcome of opening one database.
+     */
+    public static class Result {
+        DBSchema schema;
+        DatabaseManager manager;
+        long openNanos;
+        Throwable error;
+
+        public DBSchema getSchema() {
+            return schema;
+        }
+
+        /**
+         * Get the DatabaseManager, whose database is open and up to date.
+         *
+         * @return The manager, or null if opening failed.
+         */
+        public DatabaseManager getManager() {
+            return manager;
+        }
+
+        /**
+         * Get the time spent opening, creating or migrating the database.
+         */
+        public long getOpenNanos() {
+            return openNanos;
+        }
+
+        /**
+         * Get the error that prevented the database from opening.
+         *
+         * @return The error, or null if it was opened.
+         */
+        public Throwable getError() {
+            return error;
+        }
+    }
+
+    private Context context;
+    private int maxThreads;
+    private List<DBSchema> schemas;
+
+    public DatabaseStartup(Context context) {
+        this(context, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param context    Context.
+     * @param maxThreads Maximum number of databases opened at the same time.
+     */
+    public DatabaseStartup(Context context, int maxThreads) {
+        this.context = context;
+        this.maxThreads = Math.max(1, maxThreads);
+        this.schemas = new ArrayList<DBSchema>();
+    }
+
+    public void add(DBSchema dbSchema) {
+        schemas.add(dbSchema);
+    }
+
+    /**
+     * Open all databases, and wait until they are ready. This blocks, so it
+     * must not be called from the main thread.
+     *
+     * @return One result per database, in the order they were added.
+     */
+    public List<Result> run() throws InterruptedException {
+        List<Result> results = new ArrayList<Result>(schemas.size());
+        if (schemas.isEmpty()) {
+            return results;
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(maxThreads, schemas.size()));
+        try {
+            List<Future<Result>> futures = new ArrayList<Future<Result>>(schemas.size());
+            for (final DBSchema schema : schemas) {
+                futures.add(executor.submit(new Callable<Result>() {
+                    @Override
+                    public Result call() {
+                        return open(schema);
+                    }
+                }));
+            }
+
+            for (int i = 0; i < futures.size(); ++i) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    // open() catches everything, so this is not expected
+                    Result result = new Result();
+                    result.schema = schemas.get(i);
+                    result.error = e.getCause();
+                    results.add(result);
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return results;
+    }
+
+    private Result open(DBSchema schema) {
+        Result result = new Result();
+        result.schema = schema;
+        long start = System.nanoTime();
+        try {
+            DatabaseManager manager = new DatabaseManager(context, schema);
+            manager.getWritableDatabase();
+            result.manager = manager;
+        } catch (Throwable e) {
+            result.error = e;
+        }
+        result.openNanos = System.nanoTime() - start;
+        return result;
+    }
+}
@@ -0,0 +1,205 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+
+package org.thinschema;
+
+import android.content.Context;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import org.thinschema.diagnostics.SQLTrace;
+import org.thinschema.schemas.AbstractDBSchema;
+import org.thinschema.schemas.DBSchema;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads an on-disk database, or some of its tables, into an in-memory
+ * database, so that read-heavy jobs run entirely in RAM. The disk file is
+ * created or migrated first, then attached to the in-memory connection and
+ * copied with one INSERT ... SELECT per table. Writes to the copied tables
+ * are recorded, and {@link #save} writes back only the rows that changed.
+ * <p/>
+ * Usage, from a background thread:
+ * <pre>
+ * InMemoryCopy copy = new InMemoryCopy(context, schema, "Orders", "Customers");
+ * DatabaseManager memoryManager = copy.open();
+ * ...
+ * copy.save();  // optional, also done by close() with setSaveOnClose(true)
+ * copy.close();
+ * </pre>
+ *
+ * @author atedja
+ */
+public class InMemoryCopy {
+
+    private static final String DISK = "disk";
+
+    private Context context;
+    private AbstractDBSchema dbSchema;
+    private List<String> tables;
+    private boolean saveOnClose;
+
+    private DatabaseManager memoryManager;
+    private Map<String, Map<String, String>> loggedColumns;
+    private Map<String, Map<String, String>> copiedColumns;
+    private long savedSeq;
+
+    /**
+     * @param context  Context.
+     * @param dbSchema Database schema, of both the disk and the in-memory database.
+     * @param tables   The tables to load, or none to load every table of the schema.
+     */
+    public InMemoryCopy(Context context, DBSchema dbSchema, String... tables) {
+        this.context = context;
+        this.dbSchema = AbstractDBSchema.of(dbSchema);
+        this.tables = tables.length > 0 ? Arrays.asList(tables) : dbSchema.getTableNames();
+    }
+
+    /**
+     * Write the changes back to disk when closing.
+     */
+    public void setSaveOnClose(boolean saveOnClose) {
+        this.saveOnClose = saveOnClose;
+    }
+
+    /**
+     * Create the in-memory database and load the tables into it.
+     *
+     * @return The DatabaseManager of the in-memory database. Its tables that
+     * were not loaded are empty, and are not saved.
+     */
+    public DatabaseManager open() {
+        // bring the disk file up to date, so that both databases have the same tables
+        DatabaseManager diskManager = new DatabaseManager(context, dbSchema);
+        diskManager.getWritableDatabase();
+        diskManager.close();
+
+        memoryManager = new DatabaseManager(context, dbSchema, true);
+        SQLiteDatabase db = memoryManager.getWritableDatabase();
+        String path = context.getDatabasePath(dbSchema.getDatabaseName()).getPath();
+        SQLTrace.execSQL(db, "ATTACH DATABASE " + DatabaseUtils.sqlEscapeString(path) + " AS " + DISK + ";");
+
+        // rowids are copied, so that saving can find the rows again; tables without one are copied whole
+        loggedColumns = new HashMap<String, Map<String, String>>();
+        copiedColumns = new HashMap<String, Map<String, String>>();
+        for (int i = 0, size = dbSchema.getTableCount(); i < size; ++i) {
+            String table = dbSchema.getTableName(i);
+            if (!tables.contains(table)) {
+                continue;
+            }
+            Map<String, String> columns = new LinkedHashMap<String, String>();
+            for (int j = 0, count = dbSchema.getColumnCount(table); j < count; ++j) {
+                columns.put(dbSchema.getColumnName(table, j), dbSchema.getColumnName(table, j));
+            }
+            if (dbSchema.getTableWithoutRowId(i)) {
+                copiedColumns.put(table, columns);
+            } else {
+                columns.remove(ShadowMigration.getRowIdAlias(dbSchema, table));
+                loggedColumns.put(table, ChangeLog.withRowId(columns));
+            }
+        }
+
+        boolean foreignKeys = disableForeignKeys(db);
+        db.beginTransaction();
+        try {
+            copy(db, DISK, "main", loggedColumns);
+            copy(db, DISK, "main", copiedColumns);
+            ChangeLog.install(db, new ArrayList<String>(loggedColumns.keySet()));
+            savedSeq = ChangeLog.getLastSeq(db, "main");
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            restoreForeignKeys(db, foreignKeys);
+        }
+        return memoryManager;
+    }
+
+    /**
+     * Write the rows changed since the last save back to disk, in one
+     * transaction. Tables without a rowid are written back whole.
+     *
+     * @throws IllegalStateException if the copy is not open.
+     * @throws android.database.sqlite.SQLiteException if the saved rows break a
+     *                                                 foreign key, nothing is saved then.
+     */
+    public void save() {
+        if (memoryManager == null) {
+            throw new IllegalStateException("InMemoryCopy is not open");
+        }
+        SQLiteDatabase db = memoryManager.getWritableDatabase();
+
+        // the replayed deletes must not cascade, so foreign keys are checked once before committing
+        boolean foreignKeys = disableForeignKeys(db);
+        db.beginTransaction();
+        try {
+            long lastSeq = ChangeLog.replay(db, "main", "main", DISK, loggedColumns, savedSeq);
+            for (String table : copiedColumns.keySet()) {
+                SQLTrace.execSQL(db, "DELETE FROM " + DISK + "." + table + ";");
+            }
+            copy(db, "main", DISK, copiedColumns);
+            memoryManager.checkForeignKeys(db, DISK);
+
+            // the log only needs what has not been saved yet
+            SQLTrace.execSQL(db, "DELETE FROM main." + ChangeLog.TABLE + " WHERE seq <= ?;", new Object[]{lastSeq});
+            db.setTransactionSuccessful();
+            savedSeq = lastSeq;
+        } finally {
+            db.endTransaction();
+            restoreForeignKeys(db, foreignKeys);
+        }
+    }
+
+    /**
+     * Close the in-memory database, saving it first if setSaveOnClose(true)
+     * was called. Unsaved changes are lost.
+     */
+    public void close() {
+        if (memoryManager == null) {
+            return;
+        }
+        if (saveOnClose) {
+            save();
+        }
+        memoryManager.close();
+        memoryManager = null;
+    }
+
+    private static void copy(SQLiteDatabase db, String from, String to, Map<String, Map<String, String>> columns) {
+        for (Map.Entry<String, Map<String, String>> entry : columns.entrySet()) {
+            ChangeLog.copy(db, from, to, entry.getKey(), entry.getValue(), null, null);
+        }
+    }
+
+    private static boolean disableForeignKeys(SQLiteDatabase db) {
+        boolean foreignKeys = SQLTrace.longForQuery(db, "PRAGMA foreign_keys;", null) != 0;
+        SQLTrace.execSQL(db, "PRAGMA foreign_keys = OFF;");
+        return foreignKeys;
+    }
+
+    private static void restoreForeignKeys(SQLiteDatabase db, boolean foreignKeys) {
+        if (foreignKeys) {
+            SQLTrace.execSQL(db, "PRAGMA foreign_keys = ON;");
+        }
+    }
+}
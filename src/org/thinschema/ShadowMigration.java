@@ -0,0 +1,415 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+
+package org.thinschema;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import org.thinschema.diagnostics.SQLTrace;
+import org.thinschema.schemas.AbstractDBSchema;
+import org.thinschema.schemas.DBSchema;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Migrates a database without taking it offline. The new version is built in
+ * a separate shadow file while the current file keeps serving the
+ * application. Writes made in the meantime are recorded by triggers and
+ * replayed into the shadow file, which finally replaces the current file
+ * with an atomic rename.
+ * <p/>
+ * Usage, from a background thread:
+ * <pre>
+ * DatabaseManager upgraded = new ShadowMigration(context, currentManager, newSchema).run();
+ * </pre>
+ * The current DatabaseManager is closed by the swap, and must be replaced by
+ * the returned one. A write that reaches the old file after the final
+ * catch-up fails with an error instead of being lost. The swap fails if
+ * another connection still has the file open in WAL mode.
+ * <p/>
+ * The data is copied in short batches of rowids, so that the copy never
+ * holds a lock on the current file for long, whatever its journal mode. If
+ * the process dies during a migration, the change log and the shadow file
+ * are removed the next time the database is opened.
+ * <p/>
+ * Tables of attached databases are migrated in place as usual. Tables
+ * without a rowid, in either version, cannot be tracked by the change log,
+ * and are instead copied in full while the swap holds the writer lock.
+ *
+ * @author atedja
+ */
+public class ShadowMigration {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * Receives the progress of the copy after each batch.
+     */
+    public interface ProgressListener {
+        void onProgress(String table, long copiedRows);
+    }
+
+    private static final String SHADOW_SUFFIX = "-shadow";
+    private static final String GUARD_PREFIX = DatabaseManager.INTERNAL_PREFIX + "swapped_";
+    private static final String[] OPERATIONS = {"INSERT", "UPDATE", "DELETE"};
+
+    // stop catching up in the background once a pass has fewer changes than this
+    private static final int CATCH_UP_THRESHOLD = 100;
+    private static final int MAX_CATCH_UP_PASSES = 10;
+
+    // paths of the files being migrated in this process, whose change log must be left alone
+    private static final Set<String> running = new HashSet<String>();
+
+    private Context context;
+    private DatabaseManager current;
+    private AbstractDBSchema newSchema;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private ProgressListener progressListener;
+
+    public ShadowMigration(Context context, DatabaseManager current, DBSchema newSchema) {
+        this.context = context;
+        this.current = current;
+        this.newSchema = AbstractDBSchema.of(newSchema);
+    }
+
+    /**
+     * Set the number of rows copied per statement.
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public void setProgressListener(ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Build the new version in the shadow file, and swap it in. This blocks
+     * until the migration is complete, so it must not be called from the main
+     * thread. If the database is already up to date, nothing is done.
+     *
+     * @return The DatabaseManager of the new version, or the current one if no migration was needed.
+     */
+    public DatabaseManager run() {
+        SQLiteDatabase db = current.getWritableDatabase();
+        if (db.getVersion() >= newSchema.getDatabaseVersion()) {
+            return current;
+        }
+
+        String name = newSchema.getDatabaseName();
+        String shadowName = name + SHADOW_SUFFIX;
+        File file = context.getDatabasePath(name);
+        File shadowFile = context.getDatabasePath(shadowName);
+
+        // tables that exist in both versions, and how their columns are filled
+        List<String> tables = DatabaseManager.getTableNames(db);
+        if (tables == null) {
+            tables = new ArrayList<String>();
+        }
+        tables.retainAll(newSchema.getTableNames());
+        Map<String, Map<String, String>> columns = new HashMap<String, Map<String, String>>(tables.size());
+        Map<String, Map<String, String>> copiedColumns = new HashMap<String, Map<String, String>>();
+        for (String table : tables) {
+            Map<String, String> mapping = DatabaseManager.getColumnMapping(newSchema, table,
+                DatabaseManager.getColumnNames(db, table), db.getVersion());
+
+            if (!DatabaseManager.hasRowId(db, table) || isWithoutRowId(newSchema, table)) {
+                copiedColumns.put(table, mapping);
+                continue;
+            }
+
+            // the rowid is always copied, and so is any column that is an alias for it
+            mapping.remove(getRowIdAlias(newSchema, table));
+            columns.put(table, ChangeLog.withRowId(mapping));
+        }
+        List<String> loggedTables = new ArrayList<String>(columns.keySet());
+
+        synchronized (running) {
+            if (!running.add(file.getPath())) {
+                throw new IllegalStateException(name + " is already being migrated");
+            }
+        }
+        try {
+            // record every write from now on
+            long lastSeq;
+            db.beginTransaction();
+            try {
+                ChangeLog.install(db, loggedTables);
+                lastSeq = ChangeLog.getLastSeq(db, "main");
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+
+            try {
+                lastSeq = buildShadow(file, shadowName, shadowFile, columns, lastSeq);
+                swap(db, file, shadowFile, columns, copiedColumns, tables, lastSeq);
+            } catch (RuntimeException e) {
+                // leave the current database as it was, reopening it if the swap already closed it
+                context.deleteDatabase(shadowName);
+                SQLiteDatabase restored = current.getWritableDatabase();
+                for (String table : tables) {
+                    for (String operation : OPERATIONS) {
+                        SQLTrace.execSQL(restored, "DROP TRIGGER IF EXISTS " + getGuardName(table, operation) + ";");
+                    }
+                }
+                ChangeLog.uninstall(restored, loggedTables);
+                throw e;
+            }
+        } finally {
+            synchronized (running) {
+                running.remove(file.getPath());
+            }
+        }
+
+        return new DatabaseManager(context, newSchema);
+    }
+
+    /**
+     * Remove what a migration interrupted by the death of its process left
+     * behind: the change log and its triggers, the triggers that reject
+     * writes, and the shadow file. Called by DatabaseManager on every open,
+     * so it costs a single query when there is nothing to remove.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance of the current file.
+     */
+    static void cleanUp(SQLiteDatabase sqLiteDatabase) {
+        String path = sqLiteDatabase.getPath();
+        synchronized (running) {
+            if (running.contains(path)) {
+                return;
+            }
+        }
+
+        List<String[]> leftovers = new ArrayList<String[]>();
+        Cursor cursor = SQLTrace.rawQuery(sqLiteDatabase, "SELECT type, name FROM sqlite_master WHERE name GLOB ? OR name GLOB ?;",
+            new String[]{ChangeLog.TABLE + "*", GUARD_PREFIX + "*"});
+        try {
+            while (cursor.moveToNext()) {
+                leftovers.add(new String[]{cursor.getString(0), cursor.getString(1)});
+            }
+        } finally {
+            cursor.close();
+        }
+        if (leftovers.isEmpty()) {
+            return;
+        }
+
+        // triggers first, so that the log table is not dropped while they still refer to it
+        for (String[] leftover : leftovers) {
+            if ("trigger".equals(leftover[0])) {
+                SQLTrace.execSQL(sqLiteDatabase, "DROP TRIGGER IF EXISTS " + leftover[1] + ";");
+            }
+        }
+        SQLTrace.execSQL(sqLiteDatabase, "DROP TABLE IF EXISTS " + ChangeLog.TABLE + ";");
+
+        String[] sidecars = {"", "-journal", "-wal", "-shm"};
+        for (String sidecar : sidecars) {
+            new File(path + SHADOW_SUFFIX + sidecar).delete();
+        }
+    }
+
+    /**
+     * Create the shadow file from the new schema, copy the current data into
+     * it, and replay changes until only a few remain. The copy runs on its
+     * own connection, one autocommit statement per batch of rowids, so the
+     * current database stays readable, and writable between batches.
+     *
+     * @return The sequence number of the last change replayed.
+     */
+    private long buildShadow(File file, String shadowName, File shadowFile, Map<String, Map<String, String>> columns,
+                             long lastSeq) {
+        context.deleteDatabase(shadowName);
+        DatabaseManager shadowManager = new DatabaseManager(context, newSchema, shadowName);
+        shadowManager.getWritableDatabase();
+        shadowManager.close();
+
+        SQLiteDatabase copyDb = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        try {
+            SQLTrace.execSQL(copyDb, "ATTACH DATABASE " + DatabaseUtils.sqlEscapeString(shadowFile.getPath()) + " AS shadow;");
+
+            // the shadow file is thrown away on failure, and synced by the final commit in swap
+            SQLTrace.execSQL(copyDb, "PRAGMA shadow.synchronous = OFF;");
+
+            for (Map.Entry<String, Map<String, String>> entry : columns.entrySet()) {
+                copyInBatches(copyDb, entry.getKey(), entry.getValue());
+            }
+
+            for (int pass = 0; pass < MAX_CATCH_UP_PASSES; ++pass) {
+                long seq = ChangeLog.replay(copyDb, "main", "main", "shadow", columns, lastSeq);
+                boolean caughtUp = seq - lastSeq < CATCH_UP_THRESHOLD;
+                lastSeq = seq;
+                if (caughtUp) {
+                    break;
+                }
+            }
+        } finally {
+            copyDb.close();
+        }
+        return lastSeq;
+    }
+
+    /**
+     * Copy a table to the shadow file in batches of rowids. Rows written
+     * meanwhile are either in a later batch or in the change log, and
+     * replaying them again is harmless.
+     */
+    private void copyInBatches(SQLiteDatabase copyDb, String table, Map<String, String> mapping) {
+        long lastRowId = Long.MIN_VALUE;
+        long copied = 0;
+        while (true) {
+            // the end of the next batch, found through the rowid B-tree
+            long toRowId;
+            int count;
+            Cursor cursor = SQLTrace.rawQuery(copyDb, "SELECT MAX(rowid), COUNT(*) FROM (SELECT rowid FROM main." + table
+                + " WHERE rowid > ? ORDER BY rowid LIMIT " + batchSize + ");", new String[]{String.valueOf(lastRowId)});
+            try {
+                cursor.moveToFirst();
+                count = cursor.getInt(1);
+                toRowId = count > 0 ? cursor.getLong(0) : lastRowId;
+            } finally {
+                cursor.close();
+            }
+            if (count == 0) {
+                return;
+            }
+
+            ChangeLog.copy(copyDb, "main", "shadow", table, mapping, "rowid > ? AND rowid <= ?",
+                new Object[]{lastRowId, toRowId});
+            lastRowId = toRowId;
+            copied += count;
+            if (progressListener != null) {
+                progressListener.onProgress(table, copied);
+            }
+        }
+    }
+
+    /**
+     * Replay the remaining changes while holding the writer lock of the
+     * current database, copy the tables that have no change log, block
+     * further writes to it, and rename the shadow file over it.
+     */
+    private void swap(SQLiteDatabase db, File file, File shadowFile, Map<String, Map<String, String>> columns,
+                      Map<String, Map<String, String>> copiedColumns, List<String> tables, long lastSeq) {
+        SQLTrace.execSQL(db, "ATTACH DATABASE " + DatabaseUtils.sqlEscapeString(shadowFile.getPath()) + " AS shadow;");
+
+        // replaying a delete must not cascade to rows of the shadow that did not change
+        boolean foreignKeys = SQLTrace.longForQuery(db, "PRAGMA foreign_keys;", null) != 0;
+        SQLTrace.execSQL(db, "PRAGMA foreign_keys = OFF;");
+        db.beginTransaction();
+        try {
+            ChangeLog.replay(db, "main", "main", "shadow", columns, lastSeq);
+            for (Map.Entry<String, Map<String, String>> entry : copiedColumns.entrySet()) {
+                ChangeLog.copy(db, "main", "shadow", entry.getKey(), entry.getValue(), null, null);
+            }
+            BackfillRunner.schedule(db, "shadow", newSchema, db.getVersion());
+            BackfillRunner.copyPending(db, "main", "shadow");
+
+            // from here on, the old file only rejects writes
+            for (String table : tables) {
+                for (String operation : OPERATIONS) {
+                    SQLTrace.execSQL(db, "CREATE TRIGGER IF NOT EXISTS " + getGuardName(table, operation) + " BEFORE " + operation
+                        + " ON " + table + " BEGIN SELECT RAISE(ABORT, 'database was migrated'); END;");
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (foreignKeys) {
+                SQLTrace.execSQL(db, "PRAGMA foreign_keys = ON;");
+            }
+        }
+        SQLTrace.execSQL(db, "DETACH DATABASE shadow;");
+        current.close();
+        closeJournal(file);
+
+        // no connection is left, and a leftover journal would be applied to the new file when it is opened
+        String[] sidecars = {"-journal", "-wal", "-shm"};
+        for (String sidecar : sidecars) {
+            new File(file.getPath() + sidecar).delete();
+        }
+        if (!shadowFile.renameTo(file)) {
+            throw new IllegalStateException("Cannot rename " + shadowFile + " to " + file);
+        }
+    }
+
+    /**
+     * Take the current file out of WAL mode, which SQLite only allows when no
+     * other connection has it open. Its -wal and -shm files must not be
+     * deleted while another connection still uses them.
+     *
+     * @throws IllegalStateException if another connection has the file open.
+     */
+    private static void closeJournal(File file) {
+        SQLiteDatabase db = SQLiteDatabase.openDatabase(file.getPath(), null, SQLiteDatabase.OPEN_READWRITE);
+        try {
+            if (!"delete".equalsIgnoreCase(SQLTrace.stringForQuery(db, "PRAGMA journal_mode = DELETE;", null))) {
+                throw new IllegalStateException("Another connection still has " + file + " open");
+            }
+        } catch (SQLiteException e) {
+            throw new IllegalStateException("Another connection still has " + file + " open", e);
+        } finally {
+            db.close();
+        }
+    }
+
+    private static boolean isWithoutRowId(AbstractDBSchema dbSchema, String tableName) {
+        for (int i = 0, size = dbSchema.getTableCount(); i < size; ++i) {
+            if (dbSchema.getTableName(i).equals(tableName)) {
+                return dbSchema.getTableWithoutRowId(i);
+            }
+        }
+        return false;
+    }
+
+    private static String getGuardName(String table, String operation) {
+        return GUARD_PREFIX + table + "_" + operation.toLowerCase();
+    }
+
+    /**
+     * Get the column that is an alias for the rowid, that is the column of a
+     * single-column INTEGER PRIMARY KEY.
+     *
+     * @param dbSchema  Database schema.
+     * @param tableName Name of the table.
+     * @return The column name, or null if the table has no such column.
+     */
+    static String getRowIdAlias(AbstractDBSchema dbSchema, String tableName) {
+        String retval = null;
+        for (int i = 0, size = dbSchema.getColumnCount(tableName); i < size; ++i) {
+            if (dbSchema.getColumnIsPrimary(tableName, i)) {
+                String type = dbSchema.getColumnType(tableName, i);
+                if (retval != null || !("integer".equalsIgnoreCase(type) || "int".equalsIgnoreCase(type))) {
+                    return null;
+                }
+                retval = dbSchema.getColumnName(tableName, i);
+            }
+        }
+        return retval;
+    }
+}
@@ -0,0 +1,206 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+
+package org.thinschema;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import org.thinschema.diagnostics.SQLTrace;
+import org.thinschema.schemas.AbstractDBSchema;
+import org.thinschema.schemas.DBSchema;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Creates the summary tables declared in a schema, and the triggers that
+ * keep them current. Each summary table has one row per group of the source
+ * table, with a hidden _count column holding the number of source rows in
+ * the group, so that a group's row can be deleted when it becomes empty.
+ *
+ * @author atedja
+ */
+class SummaryTable {
+
+    private static final String COUNT_COLUMN = "_count";
+    private static final String FN_COUNT = "count";
+
+    /**
+     * Create a summary table, its index, and the triggers on its source table.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param dbSchema       Database schema.
+     * @param index          Index of the summary.
+     */
+    static void create(SQLiteDatabase sqLiteDatabase, AbstractDBSchema dbSchema, int index) {
+        String name = dbSchema.getSummaryName(index);
+        String source = dbSchema.getSummarySource(index);
+        List<String> groupBy = dbSchema.getSummaryGroupBy(index);
+
+        StringBuilder sb = new StringBuilder(64);
+        sb.append("CREATE TABLE IF NOT EXISTS ").append(name).append(" (")
+            .append(COUNT_COLUMN).append(" INTEGER NOT NULL DEFAULT 0");
+        for (String column : groupBy) {
+            sb.append(", ").append(column);
+        }
+        for (int i = 0, size = dbSchema.getSummaryAggregateCount(index); i < size; ++i) {
+            sb.append(", ").append(dbSchema.getSummaryAggregateName(index, i))
+                .append(isCount(dbSchema, index, i) ? " INTEGER" : " NUMERIC")
+                .append(" NOT NULL DEFAULT 0");
+        }
+        sb.append(");");
+        SQLTrace.execSQL(sqLiteDatabase, sb.toString());
+
+        if (!groupBy.isEmpty()) {
+            SQLTrace.execSQL(sqLiteDatabase, "CREATE UNIQUE INDEX IF NOT EXISTS " + name + "_groups ON " + name
+                + " (" + TextUtils.join(",", groupBy) + ");");
+        }
+
+        SQLTrace.execSQL(sqLiteDatabase, "CREATE TRIGGER IF NOT EXISTS " + name + "_insert AFTER INSERT ON " + source
+            + " BEGIN " + addRow(dbSchema, index, "NEW") + " END;");
+        SQLTrace.execSQL(sqLiteDatabase, "CREATE TRIGGER IF NOT EXISTS " + name + "_delete AFTER DELETE ON " + source
+            + " BEGIN " + removeRow(dbSchema, index, "OLD") + " END;");
+
+        // updates only matter if they change a group or an aggregated value
+        Set<String> columns = new LinkedHashSet<String>(groupBy);
+        for (int i = 0, size = dbSchema.getSummaryAggregateCount(index); i < size; ++i) {
+            String column = dbSchema.getSummaryAggregateColumn(index, i);
+            if (column != null) {
+                columns.add(column);
+            }
+        }
+        if (!columns.isEmpty()) {
+            SQLTrace.execSQL(sqLiteDatabase, "CREATE TRIGGER IF NOT EXISTS " + name + "_update AFTER UPDATE OF "
+                + TextUtils.join(",", columns) + " ON " + source
+                + " BEGIN " + removeRow(dbSchema, index, "OLD") + " " + addRow(dbSchema, index, "NEW") + " END;");
+        }
+    }
+
+    /**
+     * Recompute a summary table from its source table in a single pass.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param dbSchema       Database schema.
+     * @param index          Index of the summary.
+     */
+    static void rebuild(SQLiteDatabase sqLiteDatabase, AbstractDBSchema dbSchema, int index) {
+        String name = dbSchema.getSummaryName(index);
+        List<String> groupBy = dbSchema.getSummaryGroupBy(index);
+
+        List<String> columns = new ArrayList<String>();
+        List<String> values = new ArrayList<String>();
+        columns.add(COUNT_COLUMN);
+        values.add("COUNT(*) AS " + COUNT_COLUMN);
+        columns.addAll(groupBy);
+        values.addAll(groupBy);
+        for (int i = 0, size = dbSchema.getSummaryAggregateCount(index); i < size; ++i) {
+            String column = dbSchema.getSummaryAggregateColumn(index, i);
+            columns.add(dbSchema.getSummaryAggregateName(index, i));
+            if (!isCount(dbSchema, index, i)) {
+                values.add("COALESCE(SUM(" + column + "), 0)");
+            } else {
+                values.add(column != null ? "COUNT(" + column + ")" : "COUNT(*)");
+            }
+        }
+
+        String select = "SELECT " + TextUtils.join(",", values) + " FROM " + dbSchema.getSummarySource(index);
+        if (groupBy.isEmpty()) {
+            // an aggregate without GROUP BY returns a row even for an empty table
+            select = "SELECT * FROM (" + select + ") WHERE " + COUNT_COLUMN + " > 0";
+        } else {
+            select += " GROUP BY " + TextUtils.join(",", groupBy);
+        }
+
+        SQLTrace.execSQL(sqLiteDatabase, "DELETE FROM " + name + ";");
+        SQLTrace.execSQL(sqLiteDatabase, "INSERT INTO " + name + " (" + TextUtils.join(",", columns) + ") " + select + ";");
+    }
+
+    /**
+     * Statements that add a source row, referred to as NEW or OLD, to its group.
+     */
+    private static String addRow(AbstractDBSchema dbSchema, int index, String row) {
+        String name = dbSchema.getSummaryName(index);
+        List<String> groupBy = dbSchema.getSummaryGroupBy(index);
+
+        StringBuilder columns = new StringBuilder(COUNT_COLUMN);
+        StringBuilder values = new StringBuilder("0");
+        for (String column : groupBy) {
+            columns.append(", ").append(column);
+            values.append(", ").append(row).append('.').append(column);
+        }
+
+        String match = match(groupBy, row);
+        return "INSERT INTO " + name + " (" + columns + ") SELECT " + values
+            + " WHERE NOT EXISTS (SELECT 1 FROM " + name + " WHERE " + match + "); "
+            + "UPDATE " + name + " SET " + delta(dbSchema, index, row, '+') + " WHERE " + match + ";";
+    }
+
+    /**
+     * Statements that remove a source row, referred to as NEW or OLD, from its
+     * group, and delete the group once it is empty.
+     */
+    private static String removeRow(AbstractDBSchema dbSchema, int index, String row) {
+        String name = dbSchema.getSummaryName(index);
+        String match = match(dbSchema.getSummaryGroupBy(index), row);
+        return "UPDATE " + name + " SET " + delta(dbSchema, index, row, '-') + " WHERE " + match + "; "
+            + "DELETE FROM " + name + " WHERE " + COUNT_COLUMN + " = 0 AND " + match + ";";
+    }
+
+    /**
+     * The SET clause that applies one source row to the aggregates.
+     */
+    private static String delta(AbstractDBSchema dbSchema, int index, String row, char sign) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(COUNT_COLUMN).append(" = ").append(COUNT_COLUMN).append(' ').append(sign).append(" 1");
+        for (int i = 0, size = dbSchema.getSummaryAggregateCount(index); i < size; ++i) {
+            String name = dbSchema.getSummaryAggregateName(index, i);
+            String column = dbSchema.getSummaryAggregateColumn(index, i);
+            sb.append(", ").append(name).append(" = ").append(name).append(' ').append(sign).append(' ');
+            if (!isCount(dbSchema, index, i)) {
+                sb.append("COALESCE(").append(row).append('.').append(column).append(", 0)");
+            } else if (column != null) {
+                sb.append('(').append(row).append('.').append(column).append(" IS NOT NULL)");
+            } else {
+                sb.append('1');
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The WHERE clause that finds the group of a source row. IS is used so
+     * that NULL values form a group of their own.
+     */
+    private static String match(List<String> groupBy, String row) {
+        if (groupBy.isEmpty()) {
+            return "1";
+        }
+        List<String> terms = new ArrayList<String>(groupBy.size());
+        for (String column : groupBy) {
+            terms.add(column + " IS " + row + "." + column);
+        }
+        return TextUtils.join(" AND ", terms);
+    }
+
+    private static boolean isCount(AbstractDBSchema dbSchema, int index, int aggregate) {
+        return FN_COUNT.equalsIgnoreCase(dbSchema.getSummaryAggregateFunction(index, aggregate));
+    }
+}
@@ -0,0 +1,282 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+package org.thinschema.dataaccess;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import org.thinschema.diagnostics.SQLTrace;
+import org.thinschema.schemas.AbstractDBSchema;
+import org.thinschema.schemas.DBSchema;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Helper methods to stream large values in and out of chunked blob columns.
+ * A chunked column stores its value as a sequence of rows in a chunk table,
+ * so that neither a read nor a write ever holds more than one chunk in memory
+ * or in a CursorWindow.
+ *
+ * @author atedja
+ */
+public class BlobStream {
+
+    /**
+     * Default chunk size. Small enough to always fit in a CursorWindow.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Write the contents of a stream to a chunked blob column, replacing any
+     * existing value. The stream is read one chunk at a time, and is not closed.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param dbSchema       Database schema.
+     * @param tableName      Table name.
+     * @param columnName     Name of the chunked blob column.
+     * @param rowId          The rowid of the row that owns the value.
+     * @param inputStream    The data to write.
+     * @param chunkSize      Size of each chunk in bytes.
+     * @return The number of bytes written.
+     * @throws IOException if the stream cannot be read. Nothing is written in that case.
+     */
+    public static long write(SQLiteDatabase sqLiteDatabase, DBSchema dbSchema, String tableName, String columnName,
+                             long rowId, InputStream inputStream, int chunkSize) throws IOException {
+        String chunkTable = getChunkTable(dbSchema, tableName, columnName);
+        byte[] buffer = new byte[chunkSize];
+        long total = 0;
+
+        sqLiteDatabase.beginTransaction();
+        try {
+            deleteChunks(sqLiteDatabase, chunkTable, rowId);
+
+            int seq = 0;
+            int length;
+            while ((length = readFully(inputStream, buffer)) > 0) {
+                byte[] data = buffer;
+                if (length < buffer.length) {
+                    data = new byte[length];
+                    System.arraycopy(buffer, 0, data, 0, length);
+                }
+
+                ContentValues cv = new ContentValues();
+                cv.put("owner_id", rowId);
+                cv.put("seq", seq++);
+                cv.put("data", data);
+                SQLTrace.insertOrThrow(sqLiteDatabase, chunkTable, null, cv);
+                total += length;
+            }
+
+            sqLiteDatabase.setTransactionSuccessful();
+        } finally {
+            sqLiteDatabase.endTransaction();
+        }
+        return total;
+    }
+
+    /**
+     * Open a stream over the value of a chunked blob column. Chunks are
+     * queried one at a time as the stream is read, each in its own statement,
+     * so a value rewritten or deleted meanwhile is detected by a change in its
+     * number of chunks and fails the read with an IOException. A rewrite with
+     * the same number of chunks is not detected; read within a transaction to
+     * rule it out.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param dbSchema       Database schema.
+     * @param tableName      Table name.
+     * @param columnName     Name of the chunked blob column.
+     * @param rowId          The rowid of the row that owns the value.
+     * @return An InputStream, which is empty if there is no value.
+     */
+    public static InputStream openInputStream(SQLiteDatabase sqLiteDatabase, DBSchema dbSchema,
+                                              String tableName, String columnName, long rowId) {
+        return new ChunkInputStream(sqLiteDatabase, getChunkTable(dbSchema, tableName, columnName), rowId);
+    }
+
+    /**
+     * Get the size of the value of a chunked blob column, without reading it.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param dbSchema       Database schema.
+     * @param tableName      Table name.
+     * @param columnName     Name of the chunked blob column.
+     * @param rowId          The rowid of the row that owns the value.
+     * @return The size in bytes.
+     */
+    public static long length(SQLiteDatabase sqLiteDatabase, DBSchema dbSchema,
+                              String tableName, String columnName, long rowId) {
+        String chunkTable = getChunkTable(dbSchema, tableName, columnName);
+        long retval = 0;
+        Cursor cursor = null;
+        try {
+            cursor = SQLTrace.rawQuery(sqLiteDatabase, "SELECT SUM(LENGTH(data)) FROM " + chunkTable + " WHERE owner_id = ?;",
+                new String[]{String.valueOf(rowId)});
+            if (cursor.moveToFirst()) {
+                retval = cursor.getLong(0);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return retval;
+    }
+
+    /**
+     * Delete the value of a chunked blob column.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param dbSchema       Database schema.
+     * @param tableName      Table name.
+     * @param columnName     Name of the chunked blob column.
+     * @param rowId          The rowid of the row that owns the value.
+     */
+    public static void delete(SQLiteDatabase sqLiteDatabase, DBSchema dbSchema,
+                              String tableName, String columnName, long rowId) {
+        deleteChunks(sqLiteDatabase, getChunkTable(dbSchema, tableName, columnName), rowId);
+    }
+
+    private static void deleteChunks(SQLiteDatabase sqLiteDatabase, String chunkTable, long rowId) {
+        SQLTrace.delete(sqLiteDatabase, chunkTable, "owner_id = ?", new String[]{String.valueOf(rowId)});
+    }
+
+    /**
+     * Find the chunk table of a column.
+     *
+     * @throws IllegalArgumentException if the column is not a chunked blob column.
+     */
+    private static String getChunkTable(DBSchema dbSchema, String tableName, String columnName) {
+        for (int i = 0, size = dbSchema.getColumnCount(tableName); i < size; ++i) {
+            if (dbSchema.getColumnName(tableName, i).equals(columnName)) {
+                String chunkTable = AbstractDBSchema.of(dbSchema).getColumnChunkTable(tableName, i);
+                if (chunkTable != null) {
+                    return chunkTable;
+                }
+                break;
+            }
+        }
+        throw new IllegalArgumentException(tableName + "." + columnName + " is not a chunked blob column");
+    }
+
+    /**
+     * Read from a stream until the buffer is full or the stream ends.
+     *
+     * @return The number of bytes read, 0 at the end of the stream.
+     */
+    private static int readFully(InputStream inputStream, byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int read = inputStream.read(buffer, offset, buffer.length - offset);
+            if (read < 0) {
+                break;
+            }
+            offset += read;
+        }
+        return offset;
+    }
+
+    /**
+     * InputStream that fetches one chunk at a time, along with the number of
+     * chunks, which must stay the same from the first chunk to the last.
+     */
+    private static class ChunkInputStream extends InputStream {
+
+        private final SQLiteDatabase sqLiteDatabase;
+        private final String sql;
+        private final String ownerId;
+        private int seq;
+        private int chunkCount = -1;
+        private byte[] chunk;
+        private int position;
+
+        ChunkInputStream(SQLiteDatabase sqLiteDatabase, String chunkTable, long rowId) {
+            this.sqLiteDatabase = sqLiteDatabase;
+            this.sql = "SELECT (SELECT COUNT(*) FROM " + chunkTable + " WHERE owner_id = ?),"
+                + " (SELECT data FROM " + chunkTable + " WHERE owner_id = ? AND seq = ?);";
+            this.ownerId = String.valueOf(rowId);
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!nextChunk()) {
+                return -1;
+            }
+            return chunk[position++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (!nextChunk()) {
+                return -1;
+            }
+            int count = Math.min(length, chunk.length - position);
+            System.arraycopy(chunk, position, buffer, offset, count);
+            position += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return chunk != null ? chunk.length - position : 0;
+        }
+
+        /**
+         * Make sure there are unread bytes in the current chunk, fetching the
+         * next chunk if necessary.
+         *
+         * @return false at the end of the value.
+         * @throws IOException if the value changed since the first chunk was read.
+         */
+        private boolean nextChunk() throws IOException {
+            while (chunk == null || position >= chunk.length) {
+                Cursor cursor = null;
+                try {
+                    cursor = SQLTrace.rawQuery(sqLiteDatabase, sql, new String[]{ownerId, ownerId, String.valueOf(seq)});
+                    cursor.moveToFirst();
+                    int count = cursor.getInt(0);
+                    if (chunkCount < 0) {
+                        chunkCount = count;
+                    } else if (count != chunkCount) {
+                        throw new IOException("The value changed while it was read");
+                    }
+                    if (cursor.isNull(1)) {
+                        // the chunks are numbered from 0, a gap means they are not those of one value
+                        if (seq != count) {
+                            throw new IOException("Chunk " + seq + " of " + count + " is missing");
+                        }
+                        return false;
+                    }
+                    chunk = cursor.getBlob(1);
+                    position = 0;
+                    seq++;
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+            return true;
+        }
+    }
+}
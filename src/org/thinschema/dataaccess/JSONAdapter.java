@@ -21,12 +21,16 @@ package org.thinschema.dataaccess;
 import android.content.ContentValues;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.util.Base64;
+import org.thinschema.diagnostics.SQLTrace;
 import org.thinschema.schemas.DBSchema;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * Helper methods to insert/update/delete records.
@@ -35,6 +39,7 @@ import java.util.Iterator;
  */
 public class JSONAdapter {
 
+    private static final String DT_BLOB = "blob";
 
     /**
      * Get all data from table and convert them to JSON. Each row is converted
@@ -53,15 +58,45 @@ public class JSONAdapter {
      * @return JSONObject instance containing all records.
      */
     public static JSONObject get(SQLiteDatabase database, String tableName) {
+        return get(database, null, tableName);
+    }
+
+    /**
+     * Get all data from table and convert them to JSON, using the schema to
+     * encode blob columns as Base64 strings. The data of chunked blob columns
+     * lives in their chunk tables, use {@link BlobStream} to read it.
+     *
+     * @param database  SQLiteDatabase instance.
+     * @param dbSchema  Database schema, or null to convert every column to a string.
+     * @param tableName The name of the table.
+     * @return JSONObject instance containing all records.
+     * @see #get(SQLiteDatabase, String)
+     */
+    public static JSONObject get(SQLiteDatabase database, DBSchema dbSchema, String tableName) {
+        return get(database, dbSchema, tableName, null, null);
+    }
+
+    /**
+     * Get the rows of a table that match a selection, in the same format as
+     * {@link #get(SQLiteDatabase, DBSchema, String)}.
+     */
+    static JSONObject get(SQLiteDatabase database, DBSchema dbSchema, String tableName, String selection,
+                          String[] selectionArgs) {
 
         JSONObject retval = new JSONObject();
         Cursor cursor = null;
         try {
             retval.put("name", tableName);
-            cursor = database.query(tableName, null, null, null, null, null, null);
+            cursor = SQLTrace.query(database, tableName, null, selection, selectionArgs, null, null, null);
 
             // we get the list of all column names to make it easier when inserting key-value pairs
             String[] columnNames = cursor.getColumnNames();
+            boolean[] blobColumns = new boolean[columnNames.length];
+            if (dbSchema != null) {
+                for (int i = 0, size = columnNames.length; i < size; ++i) {
+                    blobColumns[i] = isBlobColumn(dbSchema, tableName, columnNames[i]);
+                }
+            }
 
             // iterate through each row
             if (cursor.getCount() > 0) {
@@ -72,11 +107,17 @@ public class JSONAdapter {
 
                     // for each column, store the key-value pair, using column name as key
                     for (int i = 0, size = columnNames.length; i < size; ++i) {
-                        // convert everything to a string
-                        row.put(columnNames[i], cursor.getString(i));
+                        if (blobColumns[i]) {
+                            byte[] blob = cursor.getBlob(i);
+                            row.put(columnNames[i], blob != null ? Base64.encodeToString(blob, Base64.NO_WRAP) : null);
+                        } else {
+                            // convert everything else to a string
+                            row.put(columnNames[i], cursor.getString(i));
+                        }
                     }
 
                     data.put(row);
+                    cursor.moveToNext();
                 }
 
                 // add all of that to the result
@@ -104,8 +145,45 @@ public class JSONAdapter {
      * @return true if insertion is successful.
      */
     public static boolean fill(SQLiteDatabase sqLiteDatabase, DBSchema dbSchema, String tableName, JSONObject jsonData) {
+        return fill(sqLiteDatabase, dbSchema, tableName, jsonData, null);
+    }
+
+    /**
+     * Fill a table with data from a JSON, and invalidate the inserted rows in
+     * the given cache once the insertion is committed.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param dbSchema       Database schema.
+     * @param tableName      Table name.
+     * @param jsonData       JSONObject
+     * @param rowCache       RowCache to keep in sync, or null.
+     * @return true if insertion is successful.
+     * @see #fill(SQLiteDatabase, DBSchema, String, JSONObject)
+     */
+    public static boolean fill(SQLiteDatabase sqLiteDatabase, DBSchema dbSchema, String tableName, JSONObject jsonData,
+                               RowCache rowCache) {
+        return fill(sqLiteDatabase, dbSchema, tableName, jsonData, rowCache, null);
+    }
+
+    /**
+     * Fill a table with data from a JSON, invalidate the inserted rows in the
+     * given cache, and report the table as changed on the given bus, once the
+     * insertion is committed.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param dbSchema       Database schema.
+     * @param tableName      Table name.
+     * @param jsonData       JSONObject
+     * @param rowCache       RowCache to keep in sync, or null.
+     * @param changeBus      TableChangeBus to notify, or null.
+     * @return true if insertion is successful.
+     * @see #fill(SQLiteDatabase, DBSchema, String, JSONObject)
+     */
+    public static boolean fill(SQLiteDatabase sqLiteDatabase, DBSchema dbSchema, String tableName, JSONObject jsonData,
+                               RowCache rowCache, TableChangeBus changeBus) {
         boolean success = true;
         JSONArray data = jsonData.optJSONArray("rows");
+        List<Long> rowIds = new ArrayList<Long>();
 
         sqLiteDatabase.beginTransaction();
         try {
@@ -113,10 +191,12 @@ public class JSONAdapter {
                 for (int i = 0, size = data.length(); i < size; ++i) {
                     JSONObject row = data.optJSONObject(i);
                     ContentValues cv = toContentValues(row, dbSchema, tableName);
-                    if (sqLiteDatabase.insert(tableName, null, cv) == -1) {
+                    long rowId = SQLTrace.insert(sqLiteDatabase, tableName, null, cv);
+                    if (rowId == -1) {
                         success = false;
                         break;
                     }
+                    rowIds.add(rowId);
                 }
             }
 
@@ -128,6 +208,16 @@ public class JSONAdapter {
         } finally {
             sqLiteDatabase.endTransaction();
         }
+
+        // a rowid can be reused after a delete, so never serve what was cached for it before
+        if (success && rowCache != null) {
+            for (long rowId : rowIds) {
+                rowCache.invalidate(tableName, rowId);
+            }
+        }
+        if (success && changeBus != null && !rowIds.isEmpty()) {
+            changeBus.notifyChanged(tableName);
+        }
         return success;
     }
 
@@ -135,7 +225,7 @@ public class JSONAdapter {
      * Convert a JSONObject to ConventValues, based on the provided schema.
      * Keys that do not exist in the schema as columns will be ignored.
      * Likewise, columns that exist in schema but does not exist in the JSON
-     * will use the default value.
+     * will use the default value. Values of blob columns are decoded from Base64.
      *
      * @param jsonObject JSONObject instance.
      * @param dbSchema   Database schema.
@@ -151,17 +241,40 @@ public class JSONAdapter {
 
             // check if this column exist in the schema
             boolean add = false;
+            boolean blob = false;
             for (int i = 0, size = dbSchema.getColumnCount(tableName); i < size; ++i) {
                 if (dbSchema.getColumnName(tableName, i).equals(key)) {
                     add = true;
+                    blob = DT_BLOB.equalsIgnoreCase(dbSchema.getColumnType(tableName, i));
                     break;
                 }
             }
 
             if (add) {
-                cv.put(key, jsonObject.optString(key));
+                if (blob) {
+                    cv.put(key, Base64.decode(jsonObject.optString(key), Base64.DEFAULT));
+                } else {
+                    cv.put(key, jsonObject.optString(key));
+                }
             }
         }
         return cv;
     }
+
+    /**
+     * Check if a column is declared as a blob in the schema.
+     *
+     * @param dbSchema   Database schema.
+     * @param tableName  Name of table.
+     * @param columnName Name of column.
+     * @return true if the column is a blob column, false otherwise.
+     */
+    static boolean isBlobColumn(DBSchema dbSchema, String tableName, String columnName) {
+        for (int i = 0, size = dbSchema.getColumnCount(tableName); i < size; ++i) {
+            if (dbSchema.getColumnName(tableName, i).equals(columnName)) {
+                return DT_BLOB.equalsIgnoreCase(dbSchema.getColumnType(tableName, i));
+            }
+        }
+        return false;
+    }
 }
@@ -0,0 +1,105 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+package org.thinschema.dataaccess;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import org.thinschema.diagnostics.SQLTrace;
+
+import java.util.Set;
+
+/**
+ * A query that is re-run whenever one of the tables it depends on changes,
+ * as reported by a {@link TableChangeBus}, instead of being polled. Changes
+ * arriving close together cause a single re-run.
+ * <p/>
+ * Usage:
+ * <pre>
+ * ObservableQuery query = new ObservableQuery(bus, db, "SELECT * FROM Orders WHERE customer = ?",
+ *     new String[]{customer}, listener, "Orders");
+ * query.start();
+ * ...
+ * query.stop();
+ * </pre>
+ *
+ * @author atedja
+ */
+public class ObservableQuery implements TableChangeBus.TableObserver {
+
+    /**
+     * Receives the results of the query, on the bus's thread. The listener
+     * owns the cursor and must close it.
+     */
+    public interface Listener {
+        void onResult(Cursor cursor);
+    }
+
+    private final TableChangeBus bus;
+    private final SQLiteDatabase db;
+    private final String sql;
+    private final String[] selectionArgs;
+    private final Listener listener;
+    private final String[] tables;
+    private volatile boolean started;
+
+    public ObservableQuery(TableChangeBus bus, SQLiteDatabase db, String sql, String[] selectionArgs, Listener listener,
+                           String... tables) {
+        this.bus = bus;
+        this.db = db;
+        this.sql = sql;
+        this.selectionArgs = selectionArgs;
+        this.listener = listener;
+        this.tables = tables;
+    }
+
+    /**
+     * Run the query once, and again whenever its tables change.
+     */
+    public void start() {
+        started = true;
+        bus.register(this, tables);
+        bus.execute(new Runnable() {
+            @Override
+            public void run() {
+                runQuery();
+            }
+        });
+    }
+
+    /**
+     * Stop re-running the query.
+     */
+    public void stop() {
+        started = false;
+        bus.unregister(this);
+    }
+
+    @Override
+    public void onTablesChanged(Set<String> changedTables) {
+        runQuery();
+    }
+
+    private void runQuery() {
+        if (!started) {
+            return;
+        }
+        Cursor cursor = SQLTrace.rawQuery(db, sql, selectionArgs);
+        listener.onResult(cursor);
+    }
+}
@@ -0,0 +1,338 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+package org.thinschema.dataaccess;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.text.TextUtils;
+import org.thinschema.diagnostics.SQLTrace;
+import org.thinschema.schemas.AbstractDBSchema;
+import org.thinschema.schemas.DBSchema;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Pages through a table in the order of its primary key, or of an index
+ * declared in the schema. Each page is read from the key of the last row of
+ * the page before it, through the index, so reading page after page costs
+ * the same for every page. The first request for a page deep in the table
+ * walks the index over the pages before it, reading one key per page, and
+ * the keys found are kept, so later requests seek directly. The page after
+ * the one last requested is prefetched in the background, and only a
+ * bounded number of pages is kept in memory.
+ * <p/>
+ * The key columns should be NOT NULL: rows whose key is NULL are skipped.
+ * Keys are bound with the type they are stored with. Values of blob columns
+ * are returned as byte arrays, all others as strings.
+ *
+ * @author atedja
+ */
+public class PagedTable {
+
+    public static final int DEFAULT_MAX_PAGES = 5;
+
+    private final SQLiteDatabase sqLiteDatabase;
+    private final AbstractDBSchema dbSchema;
+    private final String tableName;
+    private final int pageSize;
+    private final List<String> keys;
+    private int maxPages = DEFAULT_MAX_PAGES;
+
+    // pageStarts.get(n) is the key of the last row before page n, null for the first page
+    private final List<Object[]> pageStarts = new ArrayList<Object[]>();
+    private boolean endFound;
+    private final LinkedHashMap<Integer, List<ContentValues>> pages;
+    private final ExecutorService prefetcher;
+
+    /**
+     * Page through a table in the order of its primary key, or of its rowid if
+     * it has none.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param dbSchema       Database schema.
+     * @param tableName      Table name.
+     * @param pageSize       Number of rows per page.
+     */
+    public PagedTable(SQLiteDatabase sqLiteDatabase, DBSchema dbSchema, String tableName, int pageSize) {
+        this(sqLiteDatabase, dbSchema, tableName, null, pageSize);
+    }
+
+    /**
+     * Page through a table in the order of an index. The primary key, or the
+     * rowid, follows the index columns in the order, so that every row has a
+     * distinct key.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param dbSchema       Database schema.
+     * @param tableName      Table name.
+     * @param indexName      Name of an index of the table, or null for the primary key.
+     * @param pageSize       Number of rows per page.
+     */
+    public PagedTable(SQLiteDatabase sqLiteDatabase, DBSchema dbSchema, String tableName, String indexName,
+                      int pageSize) {
+        this.sqLiteDatabase = sqLiteDatabase;
+        this.dbSchema = AbstractDBSchema.of(dbSchema);
+        this.tableName = tableName;
+        this.pageSize = pageSize;
+        this.keys = getKeys(this.dbSchema, tableName, indexName);
+        this.pageStarts.add(null);
+        this.pages = new LinkedHashMap<Integer, List<ContentValues>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Integer, List<ContentValues>> eldest) {
+                return size() > maxPages;
+            }
+        };
+        this.prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ThinSchema-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Set the maximum number of pages kept in memory.
+     */
+    public synchronized void setMaxPages(int maxPages) {
+        this.maxPages = Math.max(2, maxPages);
+    }
+
+    /**
+     * Get a page, and prefetch the page after it unless closed.
+     *
+     * @param page Index of the page, from 0.
+     * @return The rows of the page, empty if the page is past the end of the table.
+     */
+    public List<ContentValues> getPage(int page) {
+        List<ContentValues> rows = loadPage(page);
+        if (rows.size() == pageSize) {
+            final int next = page + 1;
+            try {
+                prefetcher.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        loadPage(next);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // closed, pages are only loaded on request
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Forget the pages kept in memory and where they start, e.g. after rows
+     * were inserted or deleted.
+     */
+    public synchronized void invalidate() {
+        pages.clear();
+        pageStarts.subList(1, pageStarts.size()).clear();
+        endFound = false;
+    }
+
+    /**
+     * Stop the prefetch thread.
+     */
+    public void close() {
+        prefetcher.shutdownNow();
+    }
+
+    private synchronized List<ContentValues> loadPage(int page) {
+        List<ContentValues> rows = pages.get(page);
+        if (rows != null) {
+            return rows;
+        }
+
+        // find where the page starts, walking over the keys of the pages before it
+        while (pageStarts.size() <= page) {
+            if (endFound) {
+                return Collections.emptyList();
+            }
+            Object[] start = findLastKey(pageStarts.get(pageStarts.size() - 1));
+            if (start == null) {
+                endFound = true;
+                return Collections.emptyList();
+            }
+            pageStarts.add(start);
+        }
+
+        rows = new ArrayList<ContentValues>(pageSize);
+        Object[] lastKey = null;
+        Cursor cursor = query("*", pageStarts.get(page), 0);
+        try {
+            int firstColumn = 2 * keys.size();
+            String[] columnNames = cursor.getColumnNames();
+            boolean[] blobColumns = new boolean[columnNames.length];
+            for (int i = firstColumn; i < columnNames.length; ++i) {
+                blobColumns[i] = JSONAdapter.isBlobColumn(dbSchema, tableName, columnNames[i]);
+            }
+            while (cursor.moveToNext()) {
+                lastKey = readKey(cursor);
+                ContentValues row = new ContentValues();
+                for (int i = firstColumn; i < columnNames.length; ++i) {
+                    if (cursor.isNull(i)) {
+                        row.putNull(columnNames[i]);
+                    } else if (blobColumns[i]) {
+                        row.put(columnNames[i], cursor.getBlob(i));
+                    } else {
+                        row.put(columnNames[i], cursor.getString(i));
+                    }
+                }
+                rows.add(row);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (rows.size() == pageSize && pageStarts.size() == page + 1) {
+            pageStarts.add(lastKey);
+        } else if (rows.size() < pageSize) {
+            endFound = true;
+        }
+        rows = Collections.unmodifiableList(rows);
+        pages.put(page, rows);
+        return rows;
+    }
+
+    /**
+     * Find the key of the last row of the page that starts after a key,
+     * reading only the index.
+     *
+     * @return The key, or null if that page is not full.
+     */
+    private Object[] findLastKey(Object[] after) {
+        Cursor cursor = query(null, after, pageSize - 1);
+        try {
+            return cursor.moveToFirst() ? readKey(cursor) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Read the key of the current row with the type it is stored with, as
+     * reported by the typeof() columns that follow the key columns. Strings
+     * would compare differently, e.g. below any integer in a column without
+     * affinity, and would round reals.
+     */
+    private Object[] readKey(Cursor cursor) {
+        int keyCount = keys.size();
+        Object[] key = new Object[keyCount];
+        for (int i = 0; i < keyCount; ++i) {
+            String type = cursor.getString(keyCount + i);
+            if ("integer".equals(type)) {
+                key[i] = cursor.getLong(i);
+            } else if ("real".equals(type)) {
+                key[i] = cursor.getDouble(i);
+            } else if ("blob".equals(type)) {
+                key[i] = cursor.getBlob(i);
+            } else if ("text".equals(type)) {
+                key[i] = cursor.getString(i);
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Query the rows after a key in key order, selecting the key columns,
+     * their types, and the given columns.
+     */
+    private Cursor query(String columns, Object[] after, int offset) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(TextUtils.join(",", keys));
+        for (String key : keys) {
+            sql.append(",typeof(").append(key).append(")");
+        }
+        if (columns != null) {
+            sql.append(",").append(columns);
+        }
+        sql.append(" FROM ").append(tableName);
+
+        // (k1, k2) > (a, b) is written out, row values need a newer SQLite. The
+        // redundant k1 >= a comes first, so that the index is searched from a
+        // instead of scanned for the OR.
+        List<Object> args = new ArrayList<Object>();
+        if (after != null) {
+            List<String> terms = new ArrayList<String>(keys.size());
+            sql.append(" WHERE ");
+            if (keys.size() > 1) {
+                sql.append(keys.get(0)).append(" >= ? AND ");
+                args.add(after[0]);
+            }
+            for (int i = 0; i < keys.size(); ++i) {
+                StringBuilder term = new StringBuilder();
+                for (int j = 0; j < i; ++j) {
+                    term.append(keys.get(j)).append(" = ? AND ");
+                    args.add(after[j]);
+                }
+                term.append(keys.get(i)).append(" > ?");
+                args.add(after[i]);
+                terms.add("(" + term + ")");
+            }
+            sql.append("(").append(TextUtils.join(" OR ", terms)).append(")");
+        }
+
+        sql.append(" ORDER BY ").append(TextUtils.join(",", keys)).append(" LIMIT ").append(columns != null ? pageSize : 1);
+        if (offset > 0) {
+            sql.append(" OFFSET ").append(offset);
+        }
+        return SQLTrace.rawQuery(sqLiteDatabase, sql.toString(), args.toArray());
+    }
+
+    private static List<String> getKeys(AbstractDBSchema dbSchema, String tableName, String indexName) {
+        List<String> keys = new ArrayList<String>();
+        if (indexName != null) {
+            for (int i = 0, size = dbSchema.getIndexCount(tableName); i < size; ++i) {
+                if (dbSchema.getIndexName(tableName, i).equals(indexName)) {
+                    keys.addAll(dbSchema.getIndexColumns(tableName, i));
+                }
+            }
+            if (keys.isEmpty()) {
+                throw new IllegalArgumentException("Table " + tableName + " has no index " + indexName);
+            }
+        }
+
+        List<String> primaryKey = new ArrayList<String>();
+        for (int i = 0, size = dbSchema.getColumnCount(tableName); i < size; ++i) {
+            if (dbSchema.getColumnIsPrimary(tableName, i)) {
+                primaryKey.add(dbSchema.getColumnName(tableName, i));
+            }
+        }
+        if (primaryKey.isEmpty()) {
+            primaryKey.add("rowid");
+        }
+        for (String column : primaryKey) {
+            if (!keys.contains(column)) {
+                keys.add(column);
+            }
+        }
+        return keys;
+    }
+}
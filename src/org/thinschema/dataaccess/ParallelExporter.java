@@ -0,0 +1,306 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+package org.thinschema.dataaccess;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import org.thinschema.diagnostics.SQLTrace;
+import org.thinschema.schemas.AbstractDBSchema;
+import org.thinschema.schemas.DBSchema;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Exports the tables of a schema into a ZIP archive, one JSON entry per
+ * table, or per rowid range of a large table, in the format of
+ * {@link JSONAdapter#get(SQLiteDatabase, DBSchema, String)}.
+ * <p/>
+ * In WAL mode, the parts are read concurrently by a pool of workers, each on
+ * its own read-only connection and writing to its own file. The export holds
+ * an immediate transaction on the given connection throughout: workers on
+ * different connections only see the same committed state if nothing commits
+ * while they read, so other writers wait until the export is done. Readers do
+ * not wait. In other journal modes, the parts are read one after another on
+ * the given connection, and its read lock blocks writers just the same.
+ *
+ * @author atedja
+ */
+public class ParallelExporter {
+
+    public static final int DEFAULT_ROWS_PER_PART = 10000;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private SQLiteDatabase sqLiteDatabase;
+    private AbstractDBSchema dbSchema;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int rowsPerPart = DEFAULT_ROWS_PER_PART;
+    private final AtomicInteger workerParts = new AtomicInteger();
+
+    public ParallelExporter(SQLiteDatabase sqLiteDatabase, DBSchema dbSchema) {
+        this.sqLiteDatabase = sqLiteDatabase;
+        this.dbSchema = AbstractDBSchema.of(dbSchema);
+    }
+
+    public void setThreads(int threads) {
+        this.threads = Math.max(1, threads);
+    }
+
+    /**
+     * Set the number of rows above which a table is split into rowid ranges.
+     */
+    public void setRowsPerPart(int rowsPerPart) {
+        this.rowsPerPart = Math.max(1, rowsPerPart);
+    }
+
+    /**
+     * Get the number of parts the last export read on the workers' own
+     * connections, 0 if it read every part on the given connection.
+     */
+    public int getWorkerPartCount() {
+        return workerParts.get();
+    }
+
+    /**
+     * Export every table of the schema. This blocks until the archive is
+     * written, so it must not be called from the main thread.
+     *
+     * @param out Stream to write the ZIP archive to. It is not closed.
+     */
+    public void export(OutputStream out) throws IOException {
+        List<Part> parts = new ArrayList<Part>();
+        workerParts.set(0);
+        try {
+            beginTransactionNonExclusive();
+            try {
+                split(parts);
+
+                String journalMode = SQLTrace.stringForQuery(sqLiteDatabase, "PRAGMA journal_mode;", null);
+                if ("wal".equalsIgnoreCase(journalMode) && threads > 1 && parts.size() > 1) {
+                    exportParallel(parts);
+                } else {
+                    for (Part part : parts) {
+                        writePart(sqLiteDatabase, part);
+                    }
+                }
+                sqLiteDatabase.setTransactionSuccessful();
+            } finally {
+                sqLiteDatabase.endTransaction();
+            }
+
+            ZipOutputStream zip = new ZipOutputStream(out);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            for (Part part : parts) {
+                zip.putNextEntry(new ZipEntry(part.name));
+                InputStream in = new FileInputStream(part.file);
+                try {
+                    int read;
+                    while ((read = in.read(buffer)) != -1) {
+                        zip.write(buffer, 0, read);
+                    }
+                } finally {
+                    in.close();
+                }
+                zip.closeEntry();
+            }
+            zip.finish();
+        } finally {
+            for (Part part : parts) {
+                if (part.file != null) {
+                    part.file.delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * Begin an immediate transaction, which blocks writers but not readers on
+     * other connections, unlike the exclusive one of beginTransaction().
+     * beginTransactionNonExclusive needs API 11; older platforms have neither
+     * WAL nor a pool of connections, so their exclusive transaction blocks no
+     * other reader of this library.
+     */
+    private void beginTransactionNonExclusive() {
+        Method method;
+        try {
+            method = SQLiteDatabase.class.getMethod("beginTransactionNonExclusive");
+        } catch (NoSuchMethodException e) {
+            sqLiteDatabase.beginTransaction();
+            return;
+        }
+        try {
+            method.invoke(sqLiteDatabase);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (IllegalAccessException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Split the tables into parts of about rowsPerPart rows, by rowid.
+     */
+    private void split(List<Part> parts) {
+        for (int i = 0, size = dbSchema.getTableCount(); i < size; ++i) {
+            String table = dbSchema.getTableName(i);
+            long count = SQLTrace.longForQuery(sqLiteDatabase, "SELECT COUNT(*) FROM " + table + ";", null);
+            if (count <= rowsPerPart || dbSchema.getTableWithoutRowId(i)) {
+                parts.add(new Part(table, table + ".json", null, null));
+                continue;
+            }
+
+            // the last rowid of each part, read from the rowid B-tree in one pass
+            List<Long> bounds = new ArrayList<Long>();
+            Cursor cursor = SQLTrace.rawQuery(sqLiteDatabase, "SELECT rowid FROM " + table + " ORDER BY rowid;", null);
+            try {
+                for (int position = rowsPerPart - 1; cursor.moveToPosition(position); position += rowsPerPart) {
+                    bounds.add(cursor.getLong(0));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            String from = null;
+            for (int part = 0; part <= bounds.size(); ++part) {
+                String name = table + "." + part + ".json";
+                String to = part < bounds.size() ? String.valueOf(bounds.get(part)) : null;
+                if (from == null) {
+                    parts.add(new Part(table, name, "rowid <= ?", new String[]{to}));
+                } else if (to == null) {
+                    parts.add(new Part(table, name, "rowid > ?", new String[]{from}));
+                } else {
+                    parts.add(new Part(table, name, "rowid > ? AND rowid <= ?", new String[]{from, to}));
+                }
+                from = to;
+            }
+        }
+    }
+
+    private void exportParallel(List<Part> parts) throws IOException {
+        final String path = sqLiteDatabase.getPath();
+        final ConcurrentLinkedQueue<Part> queue = new ConcurrentLinkedQueue<Part>(parts);
+        int workers = Math.min(threads, parts.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(workers);
+            for (int i = 0; i < workers; ++i) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        SQLiteDatabase connection = SQLiteDatabase.openDatabase(path, null, SQLiteDatabase.OPEN_READONLY);
+                        try {
+                            Part part;
+                            while ((part = queue.poll()) != null) {
+                                writePart(connection, part);
+                                workerParts.incrementAndGet();
+                            }
+                        } finally {
+                            connection.close();
+                        }
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                } catch (InterruptedException e) {
+                    throw new IOException("Export interrupted");
+                }
+            }
+        } finally {
+            // the part files are deleted next, so no worker may still be writing one
+            queue.clear();
+            executor.shutdownNow();
+            awaitTermination(executor);
+        }
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (executor.awaitTermination(1, TimeUnit.SECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writePart(SQLiteDatabase connection, Part part) throws IOException {
+        part.file = File.createTempFile("export", ".json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(part.file), "UTF-8");
+        try {
+            writer.write(JSONAdapter.get(connection, dbSchema, part.table, part.selection, part.selectionArgs).toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static class Part {
+        final String table;
+        final String name;
+        final String selection;
+        final String[] selectionArgs;
+        volatile File file;
+
+        Part(String table, String name, String selection, String[] selectionArgs) {
+            this.table = table;
+            this.name = name;
+            this.selection = selection;
+            this.selectionArgs = selectionArgs;
+        }
+    }
+}
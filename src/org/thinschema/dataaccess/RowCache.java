@@ -0,0 +1,203 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+package org.thinschema.dataaccess;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import org.thinschema.diagnostics.SQLTrace;
+import org.thinschema.schemas.AbstractDBSchema;
+import org.thinschema.schemas.DBSchema;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded LRU cache of rows, keyed by rowid, which is the _id column of tables
+ * with autoPrimaryKey. Only tables with a cacheSize in the schema are cached,
+ * and they must have a rowid.
+ * {@link JSONAdapter#fill(SQLiteDatabase, DBSchema, String, org.json.JSONObject, RowCache)},
+ * which only inserts, is the only write path that invalidates the cache. Any
+ * other change to a cached table, including the updates and deletes of
+ * migrations, backfills and {@link WriteExecutor}, must call {@link #invalidate}.
+ *
+ * @author atedja
+ */
+public class RowCache {
+
+    private HashMap<String, TableCache> caches;
+
+    /**
+     * @param schema Database schema.
+     * @throws IllegalArgumentException if a cached table is WITHOUT ROWID.
+     */
+    public RowCache(DBSchema schema) {
+        AbstractDBSchema dbSchema = AbstractDBSchema.of(schema);
+        caches = new HashMap<String, TableCache>();
+        for (int i = 0, size = dbSchema.getTableCount(); i < size; ++i) {
+            int cacheSize = dbSchema.getTableCacheSize(i);
+            if (cacheSize > 0) {
+                if (dbSchema.getTableWithoutRowId(i)) {
+                    throw new IllegalArgumentException("Table " + dbSchema.getTableName(i)
+                        + " has no rowid and cannot be cached");
+                }
+                caches.put(dbSchema.getTableName(i), new TableCache(cacheSize));
+            }
+        }
+    }
+
+    /**
+     * Get a row, from the cache if possible, otherwise from the database.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param tableName      Table name.
+     * @param rowId          The rowid of the row.
+     * @return A copy of the row, or null if there is no such row.
+     */
+    public ContentValues get(SQLiteDatabase sqLiteDatabase, String tableName, long rowId) {
+        TableCache cache = caches.get(tableName);
+        long generation = 0;
+        if (cache != null) {
+            synchronized (cache) {
+                ContentValues row = cache.get(rowId);
+                if (row != null) {
+                    cache.hits++;
+                    return new ContentValues(row);
+                }
+                cache.misses++;
+                generation = cache.generation;
+            }
+        }
+
+        ContentValues row = null;
+        Cursor cursor = null;
+        try {
+            cursor = SQLTrace.query(sqLiteDatabase, tableName, null, "rowid = ?", new String[]{String.valueOf(rowId)},
+                null, null, null);
+            if (cursor.moveToFirst()) {
+                row = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, row);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        // the row is read without the lock, an invalidation meanwhile means it may already be stale
+        if (row != null && cache != null) {
+            synchronized (cache) {
+                if (cache.generation == generation) {
+                    cache.put(rowId, new ContentValues(row));
+                }
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Remove a row from the cache. Call this after changing the row by any
+     * means other than an insert through JSONAdapter.fill.
+     *
+     * @param tableName Table name.
+     * @param rowId     The rowid of the row.
+     */
+    public void invalidate(String tableName, long rowId) {
+        TableCache cache = caches.get(tableName);
+        if (cache != null) {
+            synchronized (cache) {
+                cache.remove(rowId);
+                cache.generation++;
+            }
+        }
+    }
+
+    /**
+     * Remove all rows of a table from the cache.
+     *
+     * @param tableName Table name.
+     */
+    public void invalidate(String tableName) {
+        TableCache cache = caches.get(tableName);
+        if (cache != null) {
+            synchronized (cache) {
+                cache.clear();
+                cache.generation++;
+            }
+        }
+    }
+
+    /**
+     * Get the number of reads of a table answered from the cache.
+     *
+     * @param tableName Table name.
+     * @return The number of hits, 0 if the table is not cached.
+     */
+    public long getHitCount(String tableName) {
+        TableCache cache = caches.get(tableName);
+        if (cache == null) {
+            return 0;
+        }
+        synchronized (cache) {
+            return cache.hits;
+        }
+    }
+
+    /**
+     * Get the number of reads of a table that had to query the database.
+     *
+     * @param tableName Table name.
+     * @return The number of misses, 0 if the table is not cached.
+     */
+    public long getMissCount(String tableName) {
+        TableCache cache = caches.get(tableName);
+        if (cache == null) {
+            return 0;
+        }
+        synchronized (cache) {
+            return cache.misses;
+        }
+    }
+
+    /**
+     * LinkedHashMap in access order, which drops the least recently used row
+     * once it holds more rows than allowed.
+     */
+    private static class TableCache extends LinkedHashMap<Long, ContentValues> {
+
+        private final int maxSize;
+        long hits;
+        long misses;
+
+        // incremented by every invalidation, so that a read racing with one is not cached
+        long generation;
+
+        TableCache(int maxSize) {
+            super(16, 0.75f, true);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, ContentValues> eldest) {
+            return size() > maxSize;
+        }
+    }
+}
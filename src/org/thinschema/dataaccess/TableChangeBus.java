@@ -0,0 +1,277 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+package org.thinschema.dataaccess;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import org.thinschema.diagnostics.SQLTrace;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers table-level change notifications. Tables are reported as changed
+ * by ThinSchema's write APIs that are given the bus, by {@link #notifyChanged}
+ * for writes made by other means, or by temporary triggers installed with
+ * {@link #track}. Changes are coalesced: observers are called once per
+ * debounce interval with the set of their tables that changed in it, or
+ * earlier if {@link #flush} is called.
+ * <p/>
+ * Observers are called on the bus's own thread, never on the main thread.
+ *
+ * @author atedja
+ */
+public class TableChangeBus {
+
+    public static final long DEFAULT_DEBOUNCE_MILLIS = 50;
+
+    private static final String CHANGED_TABLE = "_thinschema_changed";
+
+    /**
+     * Receives the tables that changed, among those it was registered for.
+     */
+    public interface TableObserver {
+        void onTablesChanged(Set<String> tables);
+    }
+
+    private final long debounceMillis;
+    private final CopyOnWriteArrayList<Registration> registrations = new CopyOnWriteArrayList<Registration>();
+    private final Set<String> pending = new HashSet<String>();
+    private ScheduledFuture<?> scheduled;
+    private volatile boolean tracking;
+    private final ScheduledThreadPoolExecutor dispatcher;
+    private final Runnable dispatchTask = new Runnable() {
+        @Override
+        public void run() {
+            dispatch();
+        }
+    };
+
+    public TableChangeBus() {
+        this(DEFAULT_DEBOUNCE_MILLIS);
+    }
+
+    public TableChangeBus(long debounceMillis) {
+        this.debounceMillis = debounceMillis;
+        this.dispatcher = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ThinSchema-changes");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.dispatcher.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    }
+
+    /**
+     * Register an observer of some tables.
+     *
+     * @param observer The observer.
+     * @param tables   The tables it depends on.
+     */
+    public void register(TableObserver observer, String... tables) {
+        registrations.add(new Registration(observer, new HashSet<String>(Arrays.asList(tables))));
+    }
+
+    public void unregister(TableObserver observer) {
+        for (Registration registration : registrations) {
+            if (registration.observer == observer) {
+                registrations.remove(registration);
+            }
+        }
+    }
+
+    /**
+     * Report tables as changed. Call this after committing writes made by
+     * means other than ThinSchema's write APIs, unless the tables are tracked.
+     * Changes reported after {@link #shutdown} are dropped.
+     *
+     * @param tables The tables that changed.
+     */
+    public void notifyChanged(String... tables) {
+        notifyChanged(Arrays.asList(tables));
+    }
+
+    public void notifyChanged(Collection<String> tables) {
+        if (tables.isEmpty()) {
+            return;
+        }
+        synchronized (pending) {
+            pending.addAll(tables);
+            if (scheduled == null) {
+                try {
+                    scheduled = dispatcher.schedule(dispatchTask, debounceMillis, TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // the bus is shut down, there is no one left to tell
+                    pending.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Call the observers of the pending changes now, without waiting for the
+     * end of the debounce interval, and wait until they return. This must not
+     * be called from an observer.
+     */
+    public void flush() throws InterruptedException {
+        synchronized (pending) {
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+        try {
+            dispatcher.submit(dispatchTask).get();
+        } catch (RejectedExecutionException e) {
+            // the bus is shut down, and its observers are no longer called
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Detect changes to tables with temporary triggers, which exist only on
+     * this connection and are never written to the database file. The
+     * triggers mark the tables in a temporary table, which is read by
+     * {@link #checkTracked}.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     * @param tables         The tables to track.
+     */
+    public void track(SQLiteDatabase sqLiteDatabase, Collection<String> tables) {
+        SQLTrace.execSQL(sqLiteDatabase, "CREATE TEMP TABLE IF NOT EXISTS " + CHANGED_TABLE + " (tbl TEXT PRIMARY KEY);");
+        String[] operations = {"INSERT", "UPDATE", "DELETE"};
+        for (String table : tables) {
+            for (String operation : operations) {
+                SQLTrace.execSQL(sqLiteDatabase, "CREATE TEMP TRIGGER IF NOT EXISTS " + CHANGED_TABLE + "_" + table + "_"
+                    + operation.toLowerCase() + " AFTER " + operation + " ON main." + table + " BEGIN INSERT OR IGNORE INTO "
+                    + CHANGED_TABLE + " VALUES ('" + table + "'); END;");
+            }
+        }
+        tracking = true;
+    }
+
+    /**
+     * Track every table of the main database, as {@link #track} does, e.g.
+     * to also hear about tables written by triggers.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance.
+     */
+    public void trackAll(SQLiteDatabase sqLiteDatabase) {
+        // triggers cannot be created on virtual tables
+        List<String> tables = new ArrayList<String>();
+        Cursor cursor = SQLTrace.rawQuery(sqLiteDatabase, "SELECT name FROM main.sqlite_master WHERE type = 'table'"
+            + " AND name NOT LIKE 'sqlite!_%' ESCAPE '!' AND name <> 'android_metadata'"
+            + " AND sql NOT LIKE 'CREATE VIRTUAL %';", null);
+        try {
+            while (cursor.moveToNext()) {
+                tables.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        track(sqLiteDatabase, tables);
+    }
+
+    /**
+     * Report the tracked tables that changed since the last check. Call this
+     * after committing writes to tracked tables, e.g. once per transaction.
+     *
+     * @param sqLiteDatabase SQLiteDatabase instance on which the tables are tracked.
+     */
+    public void checkTracked(SQLiteDatabase sqLiteDatabase) {
+        if (!tracking) {
+            return;
+        }
+        List<String> tables = new ArrayList<String>();
+        sqLiteDatabase.beginTransaction();
+        try {
+            Cursor cursor = SQLTrace.rawQuery(sqLiteDatabase, "SELECT tbl FROM temp." + CHANGED_TABLE + ";", null);
+            try {
+                while (cursor.moveToNext()) {
+                    tables.add(cursor.getString(0));
+                }
+            } finally {
+                cursor.close();
+            }
+            if (!tables.isEmpty()) {
+                SQLTrace.execSQL(sqLiteDatabase, "DELETE FROM temp." + CHANGED_TABLE + ";");
+            }
+            sqLiteDatabase.setTransactionSuccessful();
+        } finally {
+            sqLiteDatabase.endTransaction();
+        }
+        notifyChanged(tables);
+    }
+
+    /**
+     * Stop the bus's thread. No observer is called afterwards, and later
+     * changes are dropped.
+     */
+    public void shutdown() {
+        dispatcher.shutdown();
+    }
+
+    void execute(Runnable runnable) {
+        dispatcher.execute(runnable);
+    }
+
+    private void dispatch() {
+        Set<String> changed;
+        synchronized (pending) {
+            changed = new HashSet<String>(pending);
+            pending.clear();
+            scheduled = null;
+        }
+
+        for (Registration registration : registrations) {
+            Set<String> tables = new HashSet<String>(registration.tables);
+            tables.retainAll(changed);
+            if (!tables.isEmpty()) {
+                try {
+                    registration.observer.onTablesChanged(tables);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private static class Registration {
+        final TableObserver observer;
+        final Set<String> tables;
+
+        Registration(TableObserver observer, Set<String> tables) {
+            this.observer = observer;
+            this.tables = tables;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+package org.thinschema.dataaccess;
+
+import android.database.sqlite.SQLiteDatabase;
+import org.thinschema.DatabaseManager;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs write operations on a single writer thread, grouping the operations
+ * submitted close together into one transaction, so that a burst of small
+ * writes costs one commit instead of one per write. An operation that throws
+ * is rolled back without affecting the others in its group: the group's
+ * transaction is rolled back and run again without it. The future of an
+ * operation completes once its group is committed.
+ * <p/>
+ * Usage:
+ * <pre>
+ * WriteExecutor executor = new WriteExecutor(dbManager);
+ * Future&lt;Long&gt; rowId = executor.submit(new WriteExecutor.WriteOperation&lt;Long&gt;() {
+ *     public Long execute(SQLiteDatabase db) {
+ *         return db.insertOrThrow("Orders", null, values);
+ *     }
+ * });
+ * </pre>
+ * Operations must not begin or end transactions of their own, and since
+ * they may run more than once, they should only change the database.
+ *
+ * @author atedja
+ */
+public class WriteExecutor {
+
+    public static final int DEFAULT_MAX_BATCH_SIZE = 64;
+    public static final long DEFAULT_MAX_LATENCY_MILLIS = 10;
+
+    /**
+     * A write operation, run on the writer thread within a transaction.
+     */
+    public interface WriteOperation<T> {
+        T execute(SQLiteDatabase db);
+    }
+
+    private final DatabaseManager dbManager;
+    private final int maxBatchSize;
+    private final long maxLatencyNanos;
+    private final LinkedBlockingQueue<Task<?>> queue = new LinkedBlockingQueue<Task<?>>();
+    private final Thread writer;
+    private volatile boolean shutdown;
+    private volatile TableChangeBus changeBus;
+    private volatile long commitCount;
+
+    // the bus and connection the tracking triggers were installed for, used by the writer thread only
+    private TableChangeBus trackedBus;
+    private SQLiteDatabase trackedDatabase;
+
+    public WriteExecutor(DatabaseManager dbManager) {
+        this(dbManager, DEFAULT_MAX_BATCH_SIZE, DEFAULT_MAX_LATENCY_MILLIS);
+    }
+
+    /**
+     * @param dbManager        The database to write to.
+     * @param maxBatchSize     Maximum number of operations in one transaction.
+     * @param maxLatencyMillis Maximum time the first operation of a group waits for others to join it.
+     */
+    public WriteExecutor(DatabaseManager dbManager, int maxBatchSize, long maxLatencyMillis) {
+        this.dbManager = dbManager;
+        this.maxBatchSize = maxBatchSize;
+        this.maxLatencyNanos = TimeUnit.MILLISECONDS.toNanos(maxLatencyMillis);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                runWriter();
+            }
+        }, "ThinSchema-writer");
+        this.writer.start();
+    }
+
+    /**
+     * Report the tables changed by each committed transaction to a
+     * TableChangeBus. Every table of the database is tracked on the writing
+     * connection, so tables written by triggers are reported as well.
+     *
+     * @param changeBus The bus, or null.
+     */
+    public void setChangeBus(TableChangeBus changeBus) {
+        this.changeBus = changeBus;
+    }
+
+    /**
+     * Get the number of transactions committed so far. Compared to the number
+     * of operations, it tells how well operations are grouped.
+     */
+    public long getCommitCount() {
+        return commitCount;
+    }
+
+    /**
+     * Queue an operation.
+     *
+     * @param operation The operation.
+     * @return A future of the operation's result, which completes after the commit.
+     * @throws RejectedExecutionException if the executor was shut down.
+     */
+    public <T> Future<T> submit(WriteOperation<T> operation) {
+        if (shutdown) {
+            throw new RejectedExecutionException("WriteExecutor is shut down");
+        }
+        Task<T> task = new Task<T>(operation);
+        queue.add(task);
+        return task;
+    }
+
+    /**
+     * Stop accepting operations. Operations already queued are still run.
+     */
+    public void shutdown() {
+        shutdown = true;
+        queue.add(new Task<Object>(null));
+    }
+
+    /**
+     * Wait until the queued operations have run after shutdown().
+     *
+     * @param timeoutMillis Maximum time to wait.
+     * @return true if the writer thread has finished.
+     */
+    public boolean awaitTermination(long timeoutMillis) throws InterruptedException {
+        writer.join(timeoutMillis);
+        return !writer.isAlive();
+    }
+
+    private void runWriter() {
+        List<Task<?>> batch = new ArrayList<Task<?>>(maxBatchSize);
+        boolean stopping = false;
+        while (!stopping) {
+            batch.clear();
+            try {
+                Task<?> first = queue.take();
+                long deadline = System.nanoTime() + maxLatencyNanos;
+                Task<?> task = first;
+                while (task != null) {
+                    if (task.operation == null) {
+                        stopping = true;
+                        break;
+                    }
+                    batch.add(task);
+                    if (batch.size() >= maxBatchSize) {
+                        break;
+                    }
+                    task = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                stopping = true;
+            }
+
+            if (!batch.isEmpty()) {
+                runBatch(batch);
+            }
+        }
+
+        // anything submitted concurrently with shutdown() is failed rather than left waiting
+        Task<?> task;
+        while ((task = queue.poll()) != null) {
+            task.fail(new RejectedExecutionException("WriteExecutor is shut down"));
+        }
+    }
+
+    private void runBatch(List<Task<?>> batch) {
+        TableChangeBus bus = changeBus;
+        try {
+            SQLiteDatabase db = dbManager.getWritableDatabase();
+            if (bus != null && (bus != trackedBus || db != trackedDatabase)) {
+                bus.trackAll(db);
+                trackedBus = bus;
+                trackedDatabase = db;
+            }
+            // Android runs any statement starting with ROLLBACK as the end of its own transaction,
+            // so a savepoint cannot be rolled back; the whole group is run again without the failure
+            List<Task<?>> remaining = new ArrayList<Task<?>>(batch);
+            while (!remaining.isEmpty()) {
+                Task<?> failed = null;
+                db.beginTransaction();
+                try {
+                    for (Task<?> task : remaining) {
+                        try {
+                            task.execute(db);
+                        } catch (Exception e) {
+                            task.setError(e);
+                            failed = task;
+                            break;
+                        } catch (StackOverflowError e) {
+                            task.setError(e);
+                            failed = task;
+                            break;
+                        }
+                    }
+                    if (failed == null) {
+                        db.setTransactionSuccessful();
+                    }
+                } finally {
+                    db.endTransaction();
+                }
+                if (failed == null) {
+                    commitCount++;
+                    break;
+                }
+                remaining.remove(failed);
+            }
+        } catch (Exception e) {
+            // the commit failed, so none of the operations took effect
+            for (Task<?> task : batch) {
+                task.fail(e);
+            }
+            return;
+        }
+
+        for (Task<?> task : batch) {
+            task.complete();
+        }
+
+        if (bus != null) {
+            try {
+                bus.checkTracked(dbManager.getWritableDatabase());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A future that the writer thread completes, once the transaction of its
+     * operation is committed, with the outcome of the operation.
+     */
+    private static class Task<T> extends FutureTask<T> {
+
+        final WriteOperation<T> operation;
+        private final Outcome<T> outcome;
+
+        Task(WriteOperation<T> operation) {
+            this(operation, new Outcome<T>());
+        }
+
+        private Task(WriteOperation<T> operation, Outcome<T> outcome) {
+            super(outcome);
+            this.operation = operation;
+            this.outcome = outcome;
+        }
+
+        void execute(SQLiteDatabase db) {
+            outcome.result = operation.execute(db);
+        }
+
+        void setError(Throwable error) {
+            outcome.error = error;
+        }
+
+        void complete() {
+            run();
+        }
+
+        void fail(Throwable error) {
+            outcome.error = error;
+            run();
+        }
+    }
+
+    /**
+     * The result or the error of an operation, returned or thrown to its
+     * future when the task runs.
+     */
+    private static class Outcome<T> implements Callable<T> {
+
+        T result;
+        Throwable error;
+
+        @Override
+        public T call() throws Exception {
+            if (error instanceof Exception) {
+                throw (Exception) error;
+            } else if (error instanceof Error) {
+                throw (Error) error;
+            } else if (error != null) {
+                throw new RuntimeException(error);
+            }
+            return result;
+        }
+    }
+}
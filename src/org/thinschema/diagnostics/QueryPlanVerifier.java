@@ -0,0 +1,128 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+package org.thinschema.diagnostics;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import org.thinschema.DatabaseManager;
+import org.thinschema.schemas.AbstractDBSchema;
+import org.thinschema.schemas.DBSchema;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the queries declared in a schema against their query plans, so that
+ * a schema change that turns an indexed lookup into a full table scan is
+ * caught by a test instead of in production.
+ *
+ * @author atedja
+ */
+public class QueryPlanVerifier {
+
+    /**
+     * Create the schema in memory through DatabaseManager, and verify all of
+     * its declared queries.
+     *
+     * @param context  Context instance.
+     * @param dbSchema Database schema.
+     * @return A list of failures, empty if every query uses its index.
+     */
+    public static List<String> verify(Context context, DBSchema dbSchema) {
+        DatabaseManager dbManager = new DatabaseManager(context, dbSchema, true);
+        try {
+            return verify(dbManager.getWritableDatabase(), dbSchema);
+        } finally {
+            dbManager.close();
+        }
+    }
+
+    /**
+     * Run EXPLAIN QUERY PLAN on every query declared in the schema. A query
+     * that is expected to use an index fails when any step of its plan is a
+     * full scan of a table or an index.
+     *
+     * @param database SQLiteDatabase instance, with the schema already created.
+     * @param schema   Database schema.
+     * @return A list of failures, empty if every query uses its index.
+     */
+    public static List<String> verify(SQLiteDatabase database, DBSchema schema) {
+        AbstractDBSchema dbSchema = AbstractDBSchema.of(schema);
+        List<String> failures = new ArrayList<String>();
+        for (String table : dbSchema.getTableNames()) {
+            for (int i = 0, size = dbSchema.getQueryCount(table); i < size; ++i) {
+                if (!dbSchema.getQueryUsesIndex(table, i)) {
+                    continue;
+                }
+
+                String name = dbSchema.getQueryName(table, i);
+                try {
+                    for (String detail : explain(database, dbSchema.getQuerySql(table, i))) {
+                        if (isFullScan(detail)) {
+                            failures.add(table + "." + name + ": " + detail);
+                        }
+                    }
+                } catch (Exception e) {
+                    failures.add(table + "." + name + ": " + e.getMessage());
+                }
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * Get the query plan of a statement. Unbound parameters are treated as NULL.
+     *
+     * @param database SQLiteDatabase instance.
+     * @param sql      The statement to explain.
+     * @return The detail column of each step of the plan.
+     */
+    public static List<String> explain(SQLiteDatabase database, String sql) {
+        List<String> retval = new ArrayList<String>();
+        Cursor cursor = null;
+        try {
+            cursor = SQLTrace.rawQuery(database, "EXPLAIN QUERY PLAN " + sql, null);
+            int detail = cursor.getColumnIndexOrThrow("detail");
+            if (cursor.moveToFirst()) {
+                while (!cursor.isAfterLast()) {
+                    retval.add(cursor.getString(detail));
+                    cursor.moveToNext();
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return retval;
+    }
+
+    private static boolean isFullScan(String detail) {
+        // SQLite before 3.7 reports "TABLE x", with "WITH INDEX" or "USING PRIMARY KEY" if it seeks
+        if (detail.startsWith("TABLE ")) {
+            return !detail.contains(" USING ") && !detail.contains(" WITH INDEX ");
+        }
+
+        // subqueries and constant rows are reported as scans, but never touch a table
+        return detail.startsWith("SCAN ")
+            && !detail.startsWith("SCAN SUBQUERY")
+            && !detail.startsWith("SCAN CONSTANT ROW");
+    }
+}
@@ -0,0 +1,400 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+package org.thinschema.diagnostics;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQuery;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The single point through which ThinSchema executes its SQL. When tracing
+ * is enabled, every statement is timed, and its latency and the number of
+ * rows it affected are added to the statistics of that statement. A query
+ * is recorded when its cursor is closed, with the rows the caller read and
+ * the time spent running the query and moving the cursor. When tracing is
+ * disabled, the cost is one volatile read per statement.
+ *
+ * @author atedja
+ */
+public final class SQLTrace {
+
+    /**
+     * Receives statements that took longer than the threshold.
+     */
+    public interface SlowStatementListener {
+        void onSlowStatement(String sql, long elapsedNanos, int rowsAffected);
+    }
+
+    // statements beyond this many distinct ones are added to a single entry
+    private static final int MAX_STATEMENTS = 256;
+    private static final String OTHER = "(other)";
+
+    private static volatile boolean enabled;
+    private static volatile long slowThresholdNanos = Long.MAX_VALUE;
+    private static volatile SlowStatementListener slowListener;
+    private static final HashMap<String, StatementStats> statistics = new HashMap<String, StatementStats>();
+
+    private SQLTrace() {
+    }
+
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Set the listener of slow statements. Only called while tracing is enabled.
+     *
+     * @param thresholdMillis Statements slower than this are reported.
+     * @param listener        The listener, or null to remove it.
+     */
+    public static void setSlowStatementListener(long thresholdMillis, SlowStatementListener listener) {
+        slowThresholdNanos = listener != null ? thresholdMillis * 1000000 : Long.MAX_VALUE;
+        slowListener = listener;
+    }
+
+    /**
+     * Get a snapshot of the statistics of every statement traced so far.
+     *
+     * @return A list of StatementStats, one per distinct statement.
+     */
+    public static List<StatementStats> getStatistics() {
+        synchronized (statistics) {
+            List<StatementStats> retval = new ArrayList<StatementStats>(statistics.size());
+            for (StatementStats stats : statistics.values()) {
+                retval.add(new StatementStats(stats));
+            }
+            return retval;
+        }
+    }
+
+    /**
+     * Clear all statistics.
+     */
+    public static void reset() {
+        synchronized (statistics) {
+            statistics.clear();
+        }
+    }
+
+    public static void execSQL(SQLiteDatabase database, String sql) {
+        execSQL(database, sql, null);
+    }
+
+    public static void execSQL(SQLiteDatabase database, String sql, Object[] bindArgs) {
+        if (!enabled) {
+            if (bindArgs == null) {
+                database.execSQL(sql);
+            } else {
+                database.execSQL(sql, bindArgs);
+            }
+            return;
+        }
+
+        // changes() only counts INSERT, UPDATE and DELETE, and is stale after anything else
+        if (!isWrite(sql)) {
+            long start = System.nanoTime();
+            if (bindArgs == null) {
+                database.execSQL(sql);
+            } else {
+                database.execSQL(sql, bindArgs);
+            }
+            record(sql, System.nanoTime() - start, 0);
+            return;
+        }
+
+        // changes() is per connection, and only a transaction keeps both statements on the same one
+        boolean transaction = !database.inTransaction();
+        if (transaction) {
+            database.beginTransaction();
+        }
+        try {
+            long start = System.nanoTime();
+            if (bindArgs == null) {
+                database.execSQL(sql);
+            } else {
+                database.execSQL(sql, bindArgs);
+            }
+            long elapsed = System.nanoTime() - start;
+            int rows = (int) DatabaseUtils.longForQuery(database, "SELECT changes();", null);
+            if (transaction) {
+                database.setTransactionSuccessful();
+            }
+            record(sql, elapsed, rows);
+        } finally {
+            if (transaction) {
+                database.endTransaction();
+            }
+        }
+    }
+
+    public static long longForQuery(SQLiteDatabase database, String sql, String[] selectionArgs) {
+        if (!enabled) {
+            return DatabaseUtils.longForQuery(database, sql, selectionArgs);
+        }
+
+        long start = System.nanoTime();
+        long value = DatabaseUtils.longForQuery(database, sql, selectionArgs);
+        record(sql, System.nanoTime() - start, 1);
+        return value;
+    }
+
+    public static String stringForQuery(SQLiteDatabase database, String sql, String[] selectionArgs) {
+        if (!enabled) {
+            return DatabaseUtils.stringForQuery(database, sql, selectionArgs);
+        }
+
+        long start = System.nanoTime();
+        String value = DatabaseUtils.stringForQuery(database, sql, selectionArgs);
+        record(sql, System.nanoTime() - start, 1);
+        return value;
+    }
+
+    public static Cursor rawQuery(SQLiteDatabase database, String sql, String[] selectionArgs) {
+        if (!enabled) {
+            return database.rawQuery(sql, selectionArgs);
+        }
+
+        long start = System.nanoTime();
+        Cursor cursor = database.rawQuery(sql, selectionArgs);
+        return new TracedCursor(cursor, sql, System.nanoTime() - start);
+    }
+
+    /**
+     * Run a query whose arguments are bound with their own types, so that
+     * e.g. a Long compares as an integer and a Double keeps its precision.
+     *
+     * @param bindArgs Arguments, each a Long, Integer, Double, Float, byte[], String or null.
+     */
+    public static Cursor rawQuery(SQLiteDatabase database, String sql, final Object[] bindArgs) {
+        SQLiteDatabase.CursorFactory factory = new SQLiteDatabase.CursorFactory() {
+            @Override
+            public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable,
+                                    SQLiteQuery query) {
+                for (int i = 0; i < bindArgs.length; ++i) {
+                    Object arg = bindArgs[i];
+                    if (arg == null) {
+                        query.bindNull(i + 1);
+                    } else if (arg instanceof Long || arg instanceof Integer) {
+                        query.bindLong(i + 1, ((Number) arg).longValue());
+                    } else if (arg instanceof Double || arg instanceof Float) {
+                        query.bindDouble(i + 1, ((Number) arg).doubleValue());
+                    } else if (arg instanceof byte[]) {
+                        query.bindBlob(i + 1, (byte[]) arg);
+                    } else {
+                        query.bindString(i + 1, arg.toString());
+                    }
+                }
+                return new SQLiteCursor(db, masterQuery, editTable, query);
+            }
+        };
+        if (!enabled) {
+            return database.rawQueryWithFactory(factory, sql, null, null);
+        }
+
+        long start = System.nanoTime();
+        Cursor cursor = database.rawQueryWithFactory(factory, sql, null, null);
+        return new TracedCursor(cursor, sql, System.nanoTime() - start);
+    }
+
+    public static Cursor query(SQLiteDatabase database, String table, String[] columns, String selection,
+                               String[] selectionArgs, String groupBy, String having, String orderBy) {
+        return query(database, table, columns, selection, selectionArgs, groupBy, having, orderBy, null);
+    }
+
+    public static Cursor query(SQLiteDatabase database, String table, String[] columns, String selection,
+                               String[] selectionArgs, String groupBy, String having, String orderBy, String limit) {
+        if (!enabled) {
+            return database.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
+        }
+
+        long start = System.nanoTime();
+        Cursor cursor = database.query(table, columns, selection, selectionArgs, groupBy, having, orderBy, limit);
+        return new TracedCursor(cursor, describe("SELECT FROM", table, selection), System.nanoTime() - start);
+    }
+
+    public static long insert(SQLiteDatabase database, String table, String nullColumnHack, ContentValues values) {
+        if (!enabled) {
+            return database.insert(table, nullColumnHack, values);
+        }
+
+        long start = System.nanoTime();
+        long rowId = database.insert(table, nullColumnHack, values);
+        record(describe("INSERT INTO", table, null), System.nanoTime() - start, rowId != -1 ? 1 : 0);
+        return rowId;
+    }
+
+    public static long insertOrThrow(SQLiteDatabase database, String table, String nullColumnHack,
+                                     ContentValues values) {
+        if (!enabled) {
+            return database.insertOrThrow(table, nullColumnHack, values);
+        }
+
+        long start = System.nanoTime();
+        long rowId = database.insertOrThrow(table, nullColumnHack, values);
+        record(describe("INSERT INTO", table, null), System.nanoTime() - start, 1);
+        return rowId;
+    }
+
+    public static int update(SQLiteDatabase database, String table, ContentValues values, String whereClause,
+                             String[] whereArgs) {
+        if (!enabled) {
+            return database.update(table, values, whereClause, whereArgs);
+        }
+
+        long start = System.nanoTime();
+        int rows = database.update(table, values, whereClause, whereArgs);
+        record(describe("UPDATE", table, whereClause), System.nanoTime() - start, rows);
+        return rows;
+    }
+
+    public static int delete(SQLiteDatabase database, String table, String whereClause, String[] whereArgs) {
+        if (!enabled) {
+            return database.delete(table, whereClause, whereArgs);
+        }
+
+        long start = System.nanoTime();
+        int rows = database.delete(table, whereClause, whereArgs);
+        record(describe("DELETE FROM", table, whereClause), System.nanoTime() - start, rows);
+        return rows;
+    }
+
+    private static boolean isWrite(String sql) {
+        String verb = sql.trim();
+        verb = verb.substring(0, Math.min(verb.length(), 7)).toUpperCase();
+        return verb.startsWith("INSERT") || verb.startsWith("UPDATE")
+            || verb.startsWith("DELETE") || verb.startsWith("REPLACE");
+    }
+
+    private static String describe(String verb, String table, String whereClause) {
+        return whereClause != null ? verb + " " + table + " WHERE " + whereClause : verb + " " + table;
+    }
+
+    private static void record(String sql, long elapsedNanos, int rowsAffected) {
+        synchronized (statistics) {
+            StatementStats stats = statistics.get(sql);
+            if (stats == null) {
+                String key = statistics.size() < MAX_STATEMENTS ? sql : OTHER;
+                stats = statistics.get(key);
+                if (stats == null) {
+                    stats = new StatementStats(key);
+                    statistics.put(key, stats);
+                }
+            }
+            stats.record(elapsedNanos, rowsAffected);
+        }
+
+        SlowStatementListener listener = slowListener;
+        if (listener != null && elapsedNanos > slowThresholdNanos) {
+            listener.onSlowStatement(sql, elapsedNanos, rowsAffected);
+        }
+    }
+
+    /**
+     * Cursor that times the calls which step the query, and records the query
+     * once closed. Queries run lazily, counting the rows up front with
+     * getCount would step through the whole result before the caller reads it.
+     */
+    private static final class TracedCursor extends CursorWrapper {
+
+        private final String sql;
+        private long elapsedNanos;
+        private int rowsRead;
+        private boolean recorded;
+
+        TracedCursor(Cursor cursor, String sql, long elapsedNanos) {
+            super(cursor);
+            this.sql = sql;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        @Override
+        public int getCount() {
+            long start = System.nanoTime();
+            int count = super.getCount();
+            elapsedNanos += System.nanoTime() - start;
+            return count;
+        }
+
+        @Override
+        public boolean move(int offset) {
+            long start = System.nanoTime();
+            return moved(super.move(offset), start);
+        }
+
+        @Override
+        public boolean moveToPosition(int position) {
+            long start = System.nanoTime();
+            return moved(super.moveToPosition(position), start);
+        }
+
+        @Override
+        public boolean moveToFirst() {
+            long start = System.nanoTime();
+            return moved(super.moveToFirst(), start);
+        }
+
+        @Override
+        public boolean moveToLast() {
+            long start = System.nanoTime();
+            return moved(super.moveToLast(), start);
+        }
+
+        @Override
+        public boolean moveToNext() {
+            long start = System.nanoTime();
+            return moved(super.moveToNext(), start);
+        }
+
+        @Override
+        public boolean moveToPrevious() {
+            long start = System.nanoTime();
+            return moved(super.moveToPrevious(), start);
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (!recorded) {
+                recorded = true;
+                record(sql, elapsedNanos, rowsRead);
+            }
+        }
+
+        private boolean moved(boolean success, long start) {
+            elapsedNanos += System.nanoTime() - start;
+            if (success) {
+                rowsRead = Math.max(rowsRead, getPosition() + 1);
+            }
+            return success;
+        }
+    }
+}
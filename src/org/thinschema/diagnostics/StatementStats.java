@@ -0,0 +1,135 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+package org.thinschema.diagnostics;
+
+/**
+ * Execution statistics of one statement: how often it ran, the rows it
+ * affected, and a latency histogram with power-of-two buckets in
+ * microseconds.
+ *
+ * @author atedja
+ */
+public class StatementStats {
+
+    /**
+     * Number of histogram buckets. Bucket i counts executions that took less
+     * than 2^i microseconds, and the last bucket counts everything slower.
+     */
+    public static final int BUCKET_COUNT = 24;
+
+    private final String sql;
+    private long count;
+    private long rows;
+    private long totalNanos;
+    private long maxNanos;
+    private long[] buckets = new long[BUCKET_COUNT];
+
+    StatementStats(String sql) {
+        this.sql = sql;
+    }
+
+    StatementStats(StatementStats other) {
+        this.sql = other.sql;
+        this.count = other.count;
+        this.rows = other.rows;
+        this.totalNanos = other.totalNanos;
+        this.maxNanos = other.maxNanos;
+        this.buckets = other.buckets.clone();
+    }
+
+    void record(long elapsedNanos, int rowsAffected) {
+        count++;
+        if (rowsAffected > 0) {
+            rows += rowsAffected;
+        }
+        totalNanos += elapsedNanos;
+        maxNanos = Math.max(maxNanos, elapsedNanos);
+
+        long micros = elapsedNanos / 1000;
+        int bucket = 0;
+        while (bucket < BUCKET_COUNT - 1 && micros >= (1L << bucket)) {
+            bucket++;
+        }
+        buckets[bucket]++;
+    }
+
+    /**
+     * Get the statement, with its values as parameters.
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * Get the number of executions.
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the total number of rows inserted, updated, deleted or returned.
+     */
+    public long getRows() {
+        return rows;
+    }
+
+    /**
+     * Get the total execution time in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * Get the longest execution time in nanoseconds.
+     */
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    /**
+     * Get the number of executions in a histogram bucket.
+     *
+     * @param bucket Index of the bucket, below BUCKET_COUNT.
+     * @return The number of executions that took less than 2^bucket microseconds,
+     * but not less than 2^(bucket - 1).
+     */
+    public long getBucketCount(int bucket) {
+        return buckets[bucket];
+    }
+
+    /**
+     * Estimate a percentile of the execution time from the histogram.
+     *
+     * @param percentile The percentile, between 0 and 100.
+     * @return The upper bound in microseconds of the bucket holding the percentile.
+     */
+    public long getPercentileMicros(double percentile) {
+        long target = (long) Math.ceil(count * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; ++i) {
+            seen += buckets[i];
+            if (seen >= target) {
+                return 1L << i;
+            }
+        }
+        return 1L << (BUCKET_COUNT - 1);
+    }
+}
@@ -0,0 +1,506 @@
+/*
+
+   Copyright 2013 Albert Tedja
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+
+
+package org.thinschema.schemas;
+
+import java.util.List;
+
+/**
+ * Base class for schemas that use the optional features: attached databases,
+ * indexes, summary tables, backfills, and the rest. Every optional getter
+ * returns the value that leaves the feature off, so a subclass only overrides
+ * what it supports. A plain {@link DBSchema} is wrapped by {@link #of(DBSchema)}
+ * and gets all of the defaults.
+ *
+ * @author atedja
+ */
+public abstract class AbstractDBSchema implements DBSchema {
+
+    /**
+     * Get a schema with the optional features of the given one.
+     *
+     * @param schema A schema, which may or may not extend this class.
+     * @return The schema itself if it extends this class, or a wrapper that
+     *         uses the defaults for every optional feature.
+     */
+    public static AbstractDBSchema of(DBSchema schema) {
+        if (schema == null || schema instanceof AbstractDBSchema) {
+            return (AbstractDBSchema) schema;
+        }
+        return new Wrapper(schema);
+    }
+
+    /**
+     * Get the auto_vacuum mode of the database: "none", "full", or "incremental".
+     *
+     * @return The auto_vacuum mode, or null to leave SQLite's default untouched.
+     */
+    public String getAutoVacuum() {
+        return null;
+    }
+
+    /**
+     * Check if tables should be analyzed after they are created or migrated.
+     *
+     * @return true if ANALYZE should run after a migration, false otherwise.
+     */
+    public boolean getAnalyzeAfterMigration() {
+        return false;
+    }
+
+    /**
+     * Get the ratio of free pages to total pages above which a full VACUUM is
+     * run after a migration.
+     *
+     * @return The fragmentation threshold between 0 and 1, or 0 to never VACUUM.
+     */
+    public double getVacuumThreshold() {
+        return 0;
+    }
+
+    /**
+     * Get the number of databases that are kept in their own files and attached
+     * to this one. Each of them is created and migrated independently.
+     */
+    public int getAttachedCount() {
+        return 0;
+    }
+
+    /**
+     * Get the alias under which an attached database is visible from this one,
+     * e.g. "archive" for queries such as "SELECT * FROM archive.Orders".
+     *
+     * @param index Index of the attached database.
+     * @return The schema name of the attached database.
+     */
+    public String getAttachedAlias(int index) {
+        return null;
+    }
+
+    /**
+     * Get the schema of an attached database.
+     *
+     * @param index Index of the attached database.
+     * @return The schema, with its own name, version and tables.
+     */
+    public DBSchema getAttachedSchema(int index) {
+        return null;
+    }
+
+    /**
+     * Check if the table should be created WITHOUT ROWID, storing its rows in
+     * the primary key's B-tree. Ignored when SQLite does not support it.
+     *
+     * @param index The index of the table.
+     * @return true if the table has no rowid, false otherwise.
+     */
+    public boolean getTableWithoutRowId(int index) {
+        return false;
+    }
+
+    /**
+     * Check if the table should be created STRICT, enforcing the declared
+     * column types. Ignored when SQLite does not support it.
+     *
+     * @param index The index of the table.
+     * @return true if the table is STRICT, false otherwise.
+     */
+    public boolean getTableStrict(int index) {
+        return false;
+    }
+
+    /**
+     * Get the maximum number of rows of the table that RowCache may hold.
+     *
+     * @param index The index of the table.
+     * @return The cache size, or 0 if rows of the table should not be cached.
+     */
+    public int getTableCacheSize(int index) {
+        return 0;
+    }
+
+    /**
+     * Get the name of the column of the previous version this column was
+     * renamed from. Its data is copied during a migration if the old table
+     * does not have a column with the current name.
+     *
+     * @param table The table name.
+     * @param index The index of the column.
+     * @return The old column name, or null if the column was not renamed.
+     */
+    public String getColumnSource(String table, int index) {
+        return null;
+    }
+
+    /**
+     * Get the SQL expression over the columns of the old table that computes
+     * this column during a migration, e.g. "CAST(price * 100 AS INTEGER)".
+     *
+     * @param table The table name.
+     * @param index The index of the column.
+     * @return The expression, or null if the column is copied as is.
+     */
+    public String getColumnExpression(String table, int index) {
+        return null;
+    }
+
+    /**
+     * Get the version that introduced the expression of a column. The
+     * expression is applied when migrating from any older version. If no
+     * version is given, the expression is only applied when the old table does
+     * not have the column yet.
+     *
+     * @param table The table name.
+     * @param index The index of the column.
+     * @return The version, or 0 if not specified.
+     */
+    public int getColumnExpressionVersion(String table, int index) {
+        return 0;
+    }
+
+    /**
+     * Get the name of the table that stores the chunks of a streamed blob column.
+     * The chunk table is part of the schema, and is listed by getTableNames.
+     *
+     * @param table The table name.
+     * @param index The index of the column.
+     * @return The chunk table name, or null if the column is not chunked.
+     */
+    public String getColumnChunkTable(String table, int index) {
+        return null;
+    }
+
+    /**
+     * Get the table a column refers to with a foreign key.
+     *
+     * @param table The table name.
+     * @param index The index of the column.
+     * @return The parent table name, or null if the column is not a foreign key.
+     */
+    public String getColumnReferencesTable(String table, int index) {
+        return null;
+    }
+
+    /**
+     * Get the column of the parent table a foreign key refers to.
+     *
+     * @param table The table name.
+     * @param index The index of the column.
+     * @return The parent column name, or null to refer to the parent's primary key.
+     */
+    public String getColumnReferencesColumn(String table, int index) {
+        return null;
+    }
+
+    /**
+     * Get the action taken on the rows referring to a parent row when it is
+     * deleted, e.g. "CASCADE" or "SET NULL".
+     *
+     * @param table The table name.
+     * @param index The index of the column.
+     * @return The action, or null for the default, NO ACTION.
+     */
+    public String getColumnOnDelete(String table, int index) {
+        return null;
+    }
+
+    /**
+     * Get the number of indexes declared on the given table.
+     *
+     * @param table Table name.
+     * @return The number of indexes.
+     */
+    public int getIndexCount(String table) {
+        return 0;
+    }
+
+    /**
+     * Get the name of an index.
+     *
+     * @param table The table name.
+     * @param index Index of the index declaration.
+     * @return Name of the index.
+     */
+    public String getIndexName(String table, int index) {
+        return null;
+    }
+
+    /**
+     * Get the names of the columns covered by an index, in order.
+     *
+     * @param table The table name.
+     * @param index Index of the index declaration.
+     * @return A List of column names.
+     */
+    public List<String> getIndexColumns(String table, int index) {
+        return null;
+    }
+
+    /**
+     * Check if an index has UNIQUE property.
+     *
+     * @param table The table name.
+     * @param index Index of the index declaration.
+     * @return true if it's a UNIQUE index, false otherwise.
+     */
+    public boolean getIndexUnique(String table, int index) {
+        return false;
+    }
+
+    /**
+     * Get the number of named queries declared on the given table.
+     *
+     * @param table Table name.
+     * @return The number of queries.
+     */
+    public int getQueryCount(String table) {
+        return 0;
+    }
+
+    /**
+     * Get the name of a query.
+     *
+     * @param table The table name.
+     * @param index Index of the query.
+     * @return Name of the query.
+     */
+    public String getQueryName(String table, int index) {
+        return null;
+    }
+
+    /**
+     * Get the SQL of a query. Parameters may be written as '?'.
+     *
+     * @param table The table name.
+     * @param index Index of the query.
+     * @return The SELECT statement.
+     */
+    public String getQuerySql(String table, int index) {
+        return null;
+    }
+
+    /**
+     * Check if a query is expected to be answered through an index rather
+     * than a full table scan.
+     *
+     * @param table The table name.
+     * @param index Index of the query.
+     * @return true if the query must use an index, false otherwise.
+     */
+    public boolean getQueryUsesIndex(String table, int index) {
+        return false;
+    }
+
+    /**
+     * Get the number of summary tables. A summary table holds counts and sums
+     * of a source table, grouped by some of its columns, and is kept current
+     * by triggers.
+     */
+    public int getSummaryCount() {
+        return 0;
+    }
+
+    /**
+     * Get the name of a summary table.
+     *
+     * @param index Index of the summary.
+     * @return Name of the summary table.
+     */
+    public String getSummaryName(int index) {
+        return null;
+    }
+
+    /**
+     * Get the name of the table a summary is computed from.
+     *
+     * @param index Index of the summary.
+     * @return Name of the source table.
+     */
+    public String getSummarySource(int index) {
+        return null;
+    }
+
+    /**
+     * Get the columns of the source table that a summary is grouped by.
+     *
+     * @param index Index of the summary.
+     * @return A List of column names, empty for a single row of totals.
+     */
+    public List<String> getSummaryGroupBy(int index) {
+        return null;
+    }
+
+    /**
+     * Get the number of aggregate columns of a summary.
+     *
+     * @param index Index of the summary.
+     * @return The number of aggregates.
+     */
+    public int getSummaryAggregateCount(int index) {
+        return 0;
+    }
+
+    /**
+     * Get the name of an aggregate column.
+     *
+     * @param index     Index of the summary.
+     * @param aggregate Index of the aggregate.
+     * @return Name of the aggregate column in the summary table.
+     */
+    public String getSummaryAggregateName(int index, int aggregate) {
+        return null;
+    }
+
+    /**
+     * Get the function of an aggregate column, "count" or "sum".
+     *
+     * @param index     Index of the summary.
+     * @param aggregate Index of the aggregate.
+     * @return The aggregate function.
+     */
+    public String getSummaryAggregateFunction(int index, int aggregate) {
+        return null;
+    }
+
+    /**
+     * Get the source column an aggregate is computed over.
+     *
+     * @param index     Index of the summary.
+     * @param aggregate Index of the aggregate.
+     * @return The column name, or null for a count of rows.
+     */
+    public String getSummaryAggregateColumn(int index, int aggregate) {
+        return null;
+    }
+
+    /**
+     * Get the number of backfill steps. A backfill step fills existing rows of
+     * a table after the upgrade to its version, in batches of rowids.
+     */
+    public int getBackfillCount() {
+        return 0;
+    }
+
+    /**
+     * Get the database version that introduced a backfill step.
+     *
+     * @param index Index of the backfill step.
+     * @return The version number.
+     */
+    public int getBackfillVersion(int index) {
+        return 0;
+    }
+
+    /**
+     * Get the table whose rows a backfill step walks through.
+     *
+     * @param index Index of the backfill step.
+     * @return Name of the table.
+     */
+    public String getBackfillTable(int index) {
+        return null;
+    }
+
+    /**
+     * Get the SQL of a backfill step. It is run once per batch, with the
+     * lower (exclusive) and upper (inclusive) rowid of the batch bound to
+     * its two parameters.
+     *
+     * @param index Index of the backfill step.
+     * @return The statement, or null if the step is a callback.
+     */
+    public String getBackfillSql(int index) {
+        return null;
+    }
+
+    /**
+     * Get the name of the Java callback of a backfill step, as registered
+     * with BackfillRunner.
+     *
+     * @param index Index of the backfill step.
+     * @return The callback name, or null if the step is SQL.
+     */
+    public String getBackfillCallback(int index) {
+        return null;
+    }
+
+    private static class Wrapper extends AbstractDBSchema {
+        private final DBSchema schema;
+
+        Wrapper(DBSchema schema) {
+            this.schema = schema;
+        }
+
+        public String getDatabaseName() {
+            return schema.getDatabaseName();
+        }
+
+        public int getDatabaseVersion() {
+            return schema.getDatabaseVersion();
+        }
+
+        public int getTableCount() {
+            return schema.getTableCount();
+        }
+
+        public String getTableName(int index) {
+            return schema.getTableName(index);
+        }
+
+        public boolean getTableAutoPrimaryKey(int index) {
+            return schema.getTableAutoPrimaryKey(index);
+        }
+
+        public List<String> getTableNames() {
+            return schema.getTableNames();
+        }
+
+        public int getColumnCount(String table) {
+            return schema.getColumnCount(table);
+        }
+
+        public String getColumnName(String table, int index) {
+            return schema.getColumnName(table, index);
+        }
+
+        public List<String> getColumnNames(String table) {
+            return schema.getColumnNames(table);
+        }
+
+        public String getColumnType(String table, int index) {
+            return schema.getColumnType(table, index);
+        }
+
+        public boolean getColumnIsPrimary(String table, int index) {
+            return schema.getColumnIsPrimary(table, index);
+        }
+
+        public boolean getColumnAutoIncrement(String table, int index) {
+            return schema.getColumnAutoIncrement(table, index);
+        }
+
+        public boolean getColumnNotNull(String table, int index) {
+            return schema.getColumnNotNull(table, index);
+        }
+
+        public String getColumnDefaultValue(String table, int index) {
+            return schema.getColumnDefaultValue(table, index);
+        }
+    }
+}
@@ -35,11 +35,53 @@ public interface DBSchema {
         boolean autoIncrement;
         boolean notNull;
         String defaultValue;
+        String chunkTable;
+        String source;
+        String expression;
+        int expressionVersion;
+        String referencesTable;
+        String referencesColumn;
+        String onDelete;
     }
 
     public static class Table {
         String name;
         boolean autoPrimaryKey;
+        int cacheSize;
+        boolean withoutRowId;
+        boolean strict;
+    }
+
+    public static class Index {
+        String name;
+        List<String> columns;
+        boolean unique;
+    }
+
+    public static class Summary {
+        String name;
+        String source;
+        List<String> groupBy;
+        List<Aggregate> aggregates;
+    }
+
+    public static class Aggregate {
+        String name;
+        String function;
+        String column;
+    }
+
+    public static class Backfill {
+        int version;
+        String table;
+        String sql;
+        String callback;
+    }
+
+    public static class Query {
+        String name;
+        String sql;
+        boolean usesIndex;
     }
 
     /**
@@ -29,26 +29,74 @@ import java.util.*;
  *
  * @author atedja
  */
-public final class JSONDBSchema implements DBSchema {
+public final class JSONDBSchema extends AbstractDBSchema {
 
     private String dbName;
     private int dbVersion;
+    private String dbAutoVacuum;
+    private boolean dbAnalyze;
+    private double dbVacuumThreshold;
     private Table[] dbTables;
     private HashMap<String, List<Column>> dbColumns;
+    private HashMap<String, List<Index>> dbIndexes;
+    private HashMap<String, List<Query>> dbQueries;
+    private Summary[] dbSummaries;
+    private Backfill[] dbBackfills;
+    private String[] dbAttachedAliases;
+    private JSONDBSchema[] dbAttachedSchemas;
 
     public JSONDBSchema(JSONObject jsonSchema) {
         dbName = jsonSchema.optString("name");
         dbVersion = jsonSchema.optInt("version");
 
+        // parse the maintenance options, if any
+        JSONObject maintenance = jsonSchema.optJSONObject("maintenance");
+        if (maintenance != null) {
+            dbAutoVacuum = maintenance.optString("autoVacuum", null);
+            dbAnalyze = maintenance.optBoolean("analyze");
+            dbVacuumThreshold = maintenance.optDouble("vacuumThreshold", 0);
+        }
+
+        // parse the attached databases, each of them is a complete schema of its own
+        JSONArray attached = jsonSchema.optJSONArray("attached");
+        int attachedSize = attached != null ? attached.length() : 0;
+        dbAttachedAliases = new String[attachedSize];
+        dbAttachedSchemas = new JSONDBSchema[attachedSize];
+        for (int i = 0; i < attachedSize; ++i) {
+            JSONObject attachedJson = attached.optJSONObject(i);
+            dbAttachedSchemas[i] = new JSONDBSchema(attachedJson);
+
+            // use the file name without extension if no alias is given
+            String alias = attachedJson.optString("alias");
+            if (alias.length() == 0) {
+                alias = dbAttachedSchemas[i].getDatabaseName();
+                int dot = alias.indexOf('.');
+                if (dot > 0) {
+                    alias = alias.substring(0, dot);
+                }
+            }
+            dbAttachedAliases[i] = alias;
+        }
+
         // parse the table and columns
         JSONArray tables = jsonSchema.optJSONArray("tables");
-        dbTables = new Table[tables.length()];
+        List<Table> tablesList = new ArrayList<Table>(tables.length());
         dbColumns = new HashMap<String, List<Column>>(tables.length());
+        dbIndexes = new HashMap<String, List<Index>>(tables.length());
+        dbQueries = new HashMap<String, List<Query>>(tables.length());
         for (int i = 0, size = tables.length(); i < size; ++i) {
             JSONObject tableJson = tables.optJSONObject(i);
             Table table = new Table();
             table.name = tableJson.optString("name");
             table.autoPrimaryKey = tableJson.optBoolean("autoPrimaryKey");
+            table.cacheSize = tableJson.optInt("cacheSize");
+            table.withoutRowId = tableJson.optBoolean("withoutRowId");
+            table.strict = tableJson.optBoolean("strict");
+            if (table.cacheSize > 0 && table.withoutRowId) {
+                // RowCache reads and invalidates rows by rowid
+                throw new IllegalArgumentException("Table " + table.name + " has no rowid and cannot be cached");
+            }
+            tablesList.add(table);
 
             JSONArray columns = tableJson.optJSONArray("columns");
             ArrayList<Column> columnsList = new ArrayList<Column>(columns.length());
@@ -75,14 +123,150 @@ public final class JSONDBSchema implements DBSchema {
                 column.autoIncrement = columnJson.optBoolean("autoIncrement");
                 column.notNull = columnJson.optBoolean("notNull");
                 column.defaultValue = columnJson.optString("defaultValue");
+                column.source = columnJson.optString("from", null);
+                column.expression = columnJson.optString("expression", null);
+                column.expressionVersion = columnJson.optInt("expressionVersion");
+                JSONObject references = columnJson.optJSONObject("references");
+                if (references != null) {
+                    column.referencesTable = references.optString("table");
+                    column.referencesColumn = references.optString("column", null);
+                    column.onDelete = references.optString("onDelete", null);
+                }
                 columnsList.add(column);
+
+                // Chunked blob columns keep their data in a generated table, one row per chunk.
+                if ("blob".equalsIgnoreCase(column.type) && columnJson.optBoolean("chunked")) {
+                    column.chunkTable = table.name + "_" + column.name + "_chunks";
+                    addChunkTable(column.chunkTable, tablesList);
+                }
+            }
+
+            // indexes are optional
+            JSONArray indexes = tableJson.optJSONArray("indexes");
+            int indexSize = indexes != null ? indexes.length() : 0;
+            ArrayList<Index> indexesList = new ArrayList<Index>(indexSize);
+            for (int j = 0; j < indexSize; ++j) {
+                JSONObject indexJson = indexes.optJSONObject(j);
+                Index index = new Index();
+                index.columns = new ArrayList<String>();
+                JSONArray indexColumns = indexJson.optJSONArray("columns");
+                for (int k = 0, ks = indexColumns.length(); k < ks; ++k) {
+                    index.columns.add(indexColumns.optString(k));
+                }
+                index.unique = indexJson.optBoolean("unique");
+
+                // generate a name from the table and columns if none is given
+                index.name = indexJson.optString("name");
+                if (index.name.length() == 0) {
+                    StringBuilder sb = new StringBuilder(table.name);
+                    for (String indexColumn : index.columns) {
+                        sb.append('_').append(indexColumn);
+                    }
+                    index.name = sb.append("_idx").toString();
+                }
+                indexesList.add(index);
+            }
+
+            // queries are optional, and only used to verify query plans
+            JSONArray queries = tableJson.optJSONArray("queries");
+            int querySize = queries != null ? queries.length() : 0;
+            ArrayList<Query> queriesList = new ArrayList<Query>(querySize);
+            for (int j = 0; j < querySize; ++j) {
+                JSONObject queryJson = queries.optJSONObject(j);
+                Query query = new Query();
+                query.name = queryJson.optString("name");
+                query.sql = queryJson.optString("sql");
+                query.usesIndex = queryJson.optBoolean("usesIndex", true);
+                queriesList.add(query);
             }
 
-            dbTables[i] = table;
             dbColumns.put(table.name, columnsList);
+            dbIndexes.put(table.name, indexesList);
+            dbQueries.put(table.name, queriesList);
+        }
+        dbTables = tablesList.toArray(new Table[tablesList.size()]);
+
+        // parse the summary tables, if any
+        JSONArray summaries = jsonSchema.optJSONArray("summaries");
+        int summarySize = summaries != null ? summaries.length() : 0;
+        dbSummaries = new Summary[summarySize];
+        for (int i = 0; i < summarySize; ++i) {
+            JSONObject summaryJson = summaries.optJSONObject(i);
+            Summary summary = new Summary();
+            summary.name = summaryJson.optString("name");
+            summary.source = summaryJson.optString("source");
+
+            summary.groupBy = new ArrayList<String>();
+            JSONArray groupBy = summaryJson.optJSONArray("groupBy");
+            for (int j = 0, gs = groupBy != null ? groupBy.length() : 0; j < gs; ++j) {
+                summary.groupBy.add(groupBy.optString(j));
+            }
+
+            JSONArray aggregates = summaryJson.optJSONArray("aggregates");
+            int aggregateSize = aggregates.length();
+            summary.aggregates = new ArrayList<Aggregate>(aggregateSize);
+            for (int j = 0; j < aggregateSize; ++j) {
+                JSONObject aggregateJson = aggregates.optJSONObject(j);
+                Aggregate aggregate = new Aggregate();
+                aggregate.name = aggregateJson.optString("name");
+                aggregate.function = aggregateJson.optString("function");
+                aggregate.column = aggregateJson.optString("column", null);
+                summary.aggregates.add(aggregate);
+            }
+            dbSummaries[i] = summary;
+        }
+
+        // parse the backfill steps, if any
+        JSONArray backfills = jsonSchema.optJSONArray("backfills");
+        int backfillSize = backfills != null ? backfills.length() : 0;
+        dbBackfills = new Backfill[backfillSize];
+        for (int i = 0; i < backfillSize; ++i) {
+            JSONObject backfillJson = backfills.optJSONObject(i);
+            Backfill backfill = new Backfill();
+            backfill.version = backfillJson.optInt("version");
+            backfill.table = backfillJson.optString("table");
+            backfill.sql = backfillJson.optString("sql", null);
+            backfill.callback = backfillJson.optString("callback", null);
+            dbBackfills[i] = backfill;
         }
     }
 
+    /**
+     * Generate the table that stores the chunks of a blob column. Chunks are
+     * keyed by the rowid of the row that owns them, and their position.
+     *
+     * @param name       Name of the chunk table.
+     * @param tablesList The list of tables to add the chunk table to.
+     */
+    private void addChunkTable(String name, List<Table> tablesList) {
+        Table table = new Table();
+        table.name = name;
+
+        String[] names = {"owner_id", "seq", "data"};
+        String[] types = {"integer", "integer", "blob"};
+        ArrayList<Column> columnsList = new ArrayList<Column>(names.length);
+        for (int i = 0; i < names.length; ++i) {
+            Column column = new Column();
+            column.name = names[i];
+            column.type = types[i];
+            column.notNull = true;
+            column.defaultValue = "";
+            columnsList.add(column);
+        }
+
+        Index index = new Index();
+        index.name = name + "_idx";
+        index.columns = new ArrayList<String>(Arrays.asList(names[0], names[1]));
+        index.unique = true;
+        ArrayList<Index> indexesList = new ArrayList<Index>(1);
+        indexesList.add(index);
+
+        tablesList.add(table);
+        dbColumns.put(name, columnsList);
+        dbIndexes.put(name, indexesList);
+        dbQueries.put(name, new ArrayList<Query>());
+    }
+
     public String getDatabaseName() {
         return dbName;
     }
@@ -91,6 +275,30 @@ public final class JSONDBSchema implements DBSchema {
         return dbVersion;
     }
 
+    public String getAutoVacuum() {
+        return dbAutoVacuum;
+    }
+
+    public boolean getAnalyzeAfterMigration() {
+        return dbAnalyze;
+    }
+
+    public double getVacuumThreshold() {
+        return dbVacuumThreshold;
+    }
+
+    public int getAttachedCount() {
+        return dbAttachedSchemas.length;
+    }
+
+    public String getAttachedAlias(int index) {
+        return dbAttachedAliases[index];
+    }
+
+    public DBSchema getAttachedSchema(int index) {
+        return dbAttachedSchemas[index];
+    }
+
     public int getTableCount() {
         return dbTables.length;
     }
@@ -103,6 +311,18 @@ public final class JSONDBSchema implements DBSchema {
         return dbTables[index].autoPrimaryKey;
     }
 
+    public boolean getTableWithoutRowId(int index) {
+        return dbTables[index].withoutRowId;
+    }
+
+    public boolean getTableStrict(int index) {
+        return dbTables[index].strict;
+    }
+
+    public int getTableCacheSize(int index) {
+        return dbTables[index].cacheSize;
+    }
+
     public List<String> getTableNames() {
         List<String> array = new ArrayList<String>();
         for (Table table : dbTables) {
@@ -147,4 +367,116 @@ public final class JSONDBSchema implements DBSchema {
     public String getColumnDefaultValue(String table, int index) {
         return dbColumns.get(table).get(index).defaultValue;
     }
+
+    public String getColumnSource(String table, int index) {
+        return dbColumns.get(table).get(index).source;
+    }
+
+    public String getColumnExpression(String table, int index) {
+        return dbColumns.get(table).get(index).expression;
+    }
+
+    public int getColumnExpressionVersion(String table, int index) {
+        return dbColumns.get(table).get(index).expressionVersion;
+    }
+
+    public String getColumnChunkTable(String table, int index) {
+        return dbColumns.get(table).get(index).chunkTable;
+    }
+
+    public String getColumnReferencesTable(String table, int index) {
+        return dbColumns.get(table).get(index).referencesTable;
+    }
+
+    public String getColumnReferencesColumn(String table, int index) {
+        return dbColumns.get(table).get(index).referencesColumn;
+    }
+
+    public String getColumnOnDelete(String table, int index) {
+        return dbColumns.get(table).get(index).onDelete;
+    }
+
+    public int getIndexCount(String table) {
+        return dbIndexes.get(table).size();
+    }
+
+    public String getIndexName(String table, int index) {
+        return dbIndexes.get(table).get(index).name;
+    }
+
+    public List<String> getIndexColumns(String table, int index) {
+        return new ArrayList<String>(dbIndexes.get(table).get(index).columns);
+    }
+
+    public boolean getIndexUnique(String table, int index) {
+        return dbIndexes.get(table).get(index).unique;
+    }
+
+    public int getQueryCount(String table) {
+        return dbQueries.get(table).size();
+    }
+
+    public String getQueryName(String table, int index) {
+        return dbQueries.get(table).get(index).name;
+    }
+
+    public String getQuerySql(String table, int index) {
+        return dbQueries.get(table).get(index).sql;
+    }
+
+    public boolean getQueryUsesIndex(String table, int index) {
+        return dbQueries.get(table).get(index).usesIndex;
+    }
+
+    public int getSummaryCount() {
+        return dbSummaries.length;
+    }
+
+    public String getSummaryName(int index) {
+        return dbSummaries[index].name;
+    }
+
+    public String getSummarySource(int index) {
+        return dbSummaries[index].source;
+    }
+
+    public List<String> getSummaryGroupBy(int index) {
+        return new ArrayList<String>(dbSummaries[index].groupBy);
+    }
+
+    public int getSummaryAggregateCount(int index) {
+        return dbSummaries[index].aggregates.size();
+    }
+
+    public String getSummaryAggregateName(int index, int aggregate) {
+        return dbSummaries[index].aggregates.get(aggregate).name;
+    }
+
+    public String getSummaryAggregateFunction(int index, int aggregate) {
+        return dbSummaries[index].aggregates.get(aggregate).function;
+    }
+
+    public String getSummaryAggregateColumn(int index, int aggregate) {
+        return dbSummaries[index].aggregates.get(aggregate).column;
+    }
+
+    public int getBackfillCount() {
+        return dbBackfills.length;
+    }
+
+    public int getBackfillVersion(int index) {
+        return dbBackfills[index].version;
+    }
+
+    public String getBackfillTable(int index) {
+        return dbBackfills[index].table;
+    }
+
+    public String getBackfillSql(int index) {
+        return dbBackfills[index].sql;
+    }
+
+    public String getBackfillCallback(int index) {
+        return dbBackfills[index].callback;
+    }
 }
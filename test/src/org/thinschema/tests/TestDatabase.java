@@ -1,17 +1,51 @@
 package org.thinschema.tests;
 
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.test.InstrumentationTestCase;
 import org.json.JSONException;
 import org.json.JSONObject;
+import org.thinschema.BackfillRunner;
 import org.thinschema.DatabaseManager;
+import org.thinschema.DatabaseStartup;
+import org.thinschema.InMemoryCopy;
+import org.thinschema.ShadowMigration;
+import org.thinschema.dataaccess.BlobStream;
+import org.thinschema.dataaccess.JSONAdapter;
+import org.thinschema.dataaccess.ObservableQuery;
+import org.thinschema.dataaccess.PagedTable;
+import org.thinschema.dataaccess.ParallelExporter;
+import org.thinschema.dataaccess.RowCache;
+import org.thinschema.dataaccess.TableChangeBus;
+import org.thinschema.dataaccess.WriteExecutor;
+import org.thinschema.diagnostics.QueryPlanVerifier;
+import org.thinschema.diagnostics.SQLTrace;
+import org.thinschema.diagnostics.StatementStats;
+import org.thinschema.schemas.DBSchema;
 import org.thinschema.schemas.JSONDBSchema;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 /**
  * @author atedja
@@ -155,6 +189,988 @@ public class TestDatabase extends InstrumentationTestCase {
         db.close();
     }
 
+    public void testAutoVacuum() throws JSONException {
+        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_auto_vacuum));
+        DatabaseManager dbManager = new DatabaseManager(context, new JSONDBSchema(jsonObject), true);
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+
+        // Android creates android_metadata first, so the mode of a new database is set by a VACUUM on open
+        assertEquals(2, DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum;", null));
+        assertTrue(DBValidator.tableExists(db, "TestTable"));
+
+        db.close();
+    }
+
+    public void testColumnMapping() throws JSONException {
+        context.deleteDatabase("test_column_mapping.db");
+        DatabaseManager dbManager = new DatabaseManager(context,
+            new JSONDBSchema(new JSONObject(getSchema(R.raw.test_column_mapping_v1))));
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        db.execSQL("INSERT INTO Products (name, price, status) VALUES ('pen', 1.5, 'active');");
+        db.execSQL("INSERT INTO Products (name, price, status) VALUES ('ink', 2.25, 'retired');");
+        dbManager.close();
+
+        dbManager = new DatabaseManager(context, new JSONDBSchema(new JSONObject(getSchema(R.raw.test_column_mapping_v2))));
+        db = dbManager.getWritableDatabase();
+        assertEquals(2, db.getVersion());
+        assertFalse(DBValidator.columnExists(db, "Products", "name"));
+
+        // renamed, computed from an old column, and transformed in place
+        assertEquals(Arrays.asList("pen", "ink"), DBValidator.getValues(db, "Products", "full_name"));
+        assertEquals(Arrays.asList("150", "225"), DBValidator.getValues(db, "Products", "price_cents"));
+        assertEquals(Arrays.asList("ACTIVE", "RETIRED"), DBValidator.getValues(db, "Products", "status"));
+        assertEquals(Arrays.asList("1.5", "2.25"), DBValidator.getValues(db, "Products", "price"));
+
+        dbManager.close();
+        context.deleteDatabase("test_column_mapping.db");
+    }
+
+    public void testQueryPlan() throws JSONException {
+        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_query_plan));
+        List<String> failures = QueryPlanVerifier.verify(context, new JSONDBSchema(jsonObject));
+
+        // only the query on the unindexed column should fall back to a scan
+        assertEquals(1, failures.size());
+        assertTrue(failures.get(0).startsWith("TestTable.byColumn2"));
+    }
+
+    public void testChunkedBlob() throws Exception {
+        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_blob));
+        DBSchema dbSchema = new JSONDBSchema(jsonObject);
+        DatabaseManager dbManager = new DatabaseManager(context, dbSchema, true);
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+
+        assertTrue(DBValidator.tableExists(db, "Images_payload_chunks"));
+
+        ContentValues cv = new ContentValues();
+        cv.put("name", "image");
+        cv.put("thumbnail", new byte[]{1, 2, 3});
+        long rowId = db.insert("Images", null, cv);
+
+        byte[] payload = new byte[1000];
+        for (int i = 0; i < payload.length; ++i) {
+            payload[i] = (byte) i;
+        }
+        assertEquals(1000, BlobStream.write(db, dbSchema, "Images", "payload", rowId, new ByteArrayInputStream(payload), 64));
+        assertEquals(1000, BlobStream.length(db, dbSchema, "Images", "payload", rowId));
+
+        InputStream inputStream = BlobStream.openInputStream(db, dbSchema, "Images", "payload", rowId);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100];
+        int read;
+        while ((read = inputStream.read(buffer)) > 0) {
+            outputStream.write(buffer, 0, read);
+        }
+        assertTrue(Arrays.equals(payload, outputStream.toByteArray()));
+
+        // a value rewritten while it is read fails the read instead of mixing both values
+        inputStream = BlobStream.openInputStream(db, dbSchema, "Images", "payload", rowId);
+        assertEquals(100, inputStream.read(new byte[100]) + inputStream.read(new byte[100]));
+        BlobStream.write(db, dbSchema, "Images", "payload", rowId, new ByteArrayInputStream(payload), 128);
+        try {
+            while (inputStream.read(buffer) > 0) {
+                // keep reading
+            }
+            fail("The rewrite must be detected");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // chunks are deleted together with their row
+        db.delete("Images", null, null);
+        assertNull(DBValidator.getValues(db, "Images_payload_chunks", "seq"));
+
+        db.close();
+    }
+
+    public void testChunkedBlobMigration() throws Exception {
+        context.deleteDatabase("test_blob_rowid.db");
+        DBSchema dbSchema = new JSONDBSchema(new JSONObject(getSchema(R.raw.test_blob_rowid_v1)));
+        DatabaseManager dbManager = new DatabaseManager(context, dbSchema);
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        db.execSQL("INSERT INTO Files (name) VALUES ('a');");
+        db.execSQL("INSERT INTO Files (name) VALUES ('b');");
+        db.execSQL("INSERT INTO Files (name) VALUES ('c');");
+        db.execSQL("DELETE FROM Files WHERE name = 'b';");
+        BlobStream.write(db, dbSchema, "Files", "payload", 3, new ByteArrayInputStream(new byte[100]), 64);
+        dbManager.close();
+
+        // the table has no INTEGER PRIMARY KEY, the migration must still keep the rowid owning the chunks
+        dbSchema = new JSONDBSchema(new JSONObject(getSchema(R.raw.test_blob_rowid_v2)));
+        dbManager = new DatabaseManager(context, dbSchema);
+        db = dbManager.getWritableDatabase();
+        assertTrue(DBValidator.columnExists(db, "Files", "size"));
+        assertEquals(3, DatabaseUtils.longForQuery(db, "SELECT rowid FROM Files WHERE name = 'c';", null));
+        assertEquals(100, BlobStream.length(db, dbSchema, "Files", "payload", 3));
+
+        dbManager.close();
+        context.deleteDatabase("test_blob_rowid.db");
+    }
+
+    public void testAttachedDatabase() throws JSONException {
+        context.deleteDatabase("test_attached.db");
+        context.deleteDatabase("test_attached_archive.db");
+        DBSchema dbSchema = new JSONDBSchema(new JSONObject(getSchema(R.raw.test_attached)));
+        DatabaseManager dbManager = new DatabaseManager(context, dbSchema);
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+
+        // the attached table lives in its own file, and is queried through the alias
+        assertTrue(DBValidator.tableExists(db, "Orders"));
+        assertFalse(DBValidator.tableExists(db, "ArchivedOrders"));
+        db.execSQL("INSERT INTO archive.ArchivedOrders (customer) VALUES ('a');");
+        assertEquals("a", DatabaseUtils.stringForQuery(db, "SELECT customer FROM archive.ArchivedOrders;", null));
+        dbManager.close();
+
+        SQLiteDatabase archive = SQLiteDatabase.openDatabase(context.getDatabasePath("test_attached_archive.db").getPath(),
+            null, SQLiteDatabase.OPEN_READONLY);
+        assertTrue(DBValidator.tableExists(archive, "ArchivedOrders"));
+        assertEquals(Arrays.asList("a"), DBValidator.getValues(archive, "ArchivedOrders", "customer"));
+        archive.close();
+
+        // an in-memory database has nowhere to keep the attached tables
+        try {
+            new DatabaseManager(context, dbSchema, true);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        context.deleteDatabase("test_attached.db");
+        context.deleteDatabase("test_attached_archive.db");
+    }
+
+    public void testShadowMigration() throws JSONException {
+        context.deleteDatabase("test_shadow.db");
+        DatabaseManager dbManager = new DatabaseManager(context,
+            new JSONDBSchema(new JSONObject(getSchema(R.raw.test_shadow_v1))));
+        final SQLiteDatabase db = dbManager.getWritableDatabase();
+        for (int i = 1; i <= 25; ++i) {
+            db.execSQL("INSERT INTO Notes (body) VALUES ('note" + i + "');");
+        }
+
+        // the app keeps writing to the current file while the shadow is being built
+        ShadowMigration migration = new ShadowMigration(context, dbManager,
+            new JSONDBSchema(new JSONObject(getSchema(R.raw.test_shadow_v2))));
+        migration.setBatchSize(10);
+        final List<Long> progress = new ArrayList<Long>();
+        migration.setProgressListener(new ShadowMigration.ProgressListener() {
+            @Override
+            public void onProgress(String table, long copiedRows) {
+                if (progress.isEmpty()) {
+                    db.execSQL("UPDATE Notes SET body = 'changed' WHERE _id = 1;");
+                    db.execSQL("DELETE FROM Notes WHERE _id = 2;");
+                    db.execSQL("INSERT INTO Notes (body) VALUES ('note26');");
+                }
+                progress.add(copiedRows);
+            }
+        });
+        DatabaseManager upgraded = migration.run();
+
+        // the row inserted meanwhile is picked up by the last batch, the others by the catch-up
+        assertEquals(Arrays.asList(10L, 20L, 26L), progress);
+
+        SQLiteDatabase newDb = upgraded.getWritableDatabase();
+        assertEquals(2, newDb.getVersion());
+        assertTrue(DBValidator.columnExists(newDb, "Notes", "pinned"));
+        List<String> bodies = DBValidator.getValues(newDb, "Notes", "body");
+        assertEquals(25, bodies.size());
+        assertEquals("changed", bodies.get(0));
+        assertFalse(bodies.contains("note2"));
+        assertTrue(bodies.contains("note26"));
+        assertFalse(DBValidator.tableExists(newDb, "_thinschema_changes"));
+        upgraded.close();
+
+        // what a migration killed half-way leaves behind is removed on the next open
+        newDb = SQLiteDatabase.openDatabase(context.getDatabasePath("test_shadow.db").getPath(), null,
+            SQLiteDatabase.OPEN_READWRITE);
+        newDb.execSQL("CREATE TABLE _thinschema_changes (seq INTEGER PRIMARY KEY, tbl TEXT, row INTEGER);");
+        newDb.execSQL("CREATE TRIGGER _thinschema_swapped_Notes_insert BEFORE INSERT ON Notes"
+            + " BEGIN SELECT RAISE(ABORT, 'database was migrated'); END;");
+        newDb.close();
+        dbManager = new DatabaseManager(context, new JSONDBSchema(new JSONObject(getSchema(R.raw.test_shadow_v2))));
+        newDb = dbManager.getWritableDatabase();
+        assertFalse(DBValidator.tableExists(newDb, "_thinschema_changes"));
+        newDb.execSQL("INSERT INTO Notes (body) VALUES ('note27');");
+
+        dbManager.close();
+        context.deleteDatabase("test_shadow.db");
+    }
+
+    public void testRowCache() throws JSONException {
+        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_row_cache));
+        DBSchema schema = new JSONDBSchema(jsonObject);
+        DatabaseManager dbManager = new DatabaseManager(context, schema, true);
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        db.execSQL("INSERT INTO Items (name) VALUES ('a');");
+        db.execSQL("INSERT INTO Items (name) VALUES ('b');");
+        db.execSQL("INSERT INTO Items (name) VALUES ('c');");
+
+        RowCache cache = new RowCache(schema);
+        assertEquals("a", cache.get(db, "Items", 1).getAsString("name"));
+        assertEquals("a", cache.get(db, "Items", 1).getAsString("name"));
+        assertEquals(1, cache.getHitCount("Items"));
+        assertEquals(1, cache.getMissCount("Items"));
+
+        // a write by other means is only seen once the row is invalidated
+        db.execSQL("UPDATE Items SET name = 'z' WHERE _id = 1;");
+        assertEquals("a", cache.get(db, "Items", 1).getAsString("name"));
+        cache.invalidate("Items", 1);
+        assertEquals("z", cache.get(db, "Items", 1).getAsString("name"));
+        assertEquals(2, cache.getHitCount("Items"));
+        assertEquals(2, cache.getMissCount("Items"));
+
+        // the cache holds two rows, reading two others evicts the least recently used
+        cache.get(db, "Items", 2);
+        cache.get(db, "Items", 3);
+        cache.get(db, "Items", 1);
+        assertEquals(2, cache.getHitCount("Items"));
+        assertEquals(5, cache.getMissCount("Items"));
+        assertNull(cache.get(db, "Items", 4));
+
+        db.close();
+
+        // rows are cached by rowid, so a table without one is rejected when the schema is parsed
+        try {
+            new JSONDBSchema(new JSONObject("{\"name\": \"test_cache.db\", \"version\": 1, \"tables\": [{"
+                + "\"name\": \"Pairs\", \"cacheSize\": 2, \"withoutRowId\": true, \"columns\": ["
+                + "{\"name\": \"a\", \"type\": \"integer\", \"isPrimary\": true}]}]}"));
+            fail("A WITHOUT ROWID table cannot be cached");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testSQLTrace() throws JSONException {
+        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_summary));
+        DatabaseManager dbManager = new DatabaseManager(context, new JSONDBSchema(jsonObject), true);
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+
+        SQLTrace.reset();
+        SQLTrace.setEnabled(true);
+        try {
+            String insert = "INSERT INTO Orders (customer, amount) VALUES (?, 1);";
+            String update = "UPDATE Orders SET amount = 2;";
+            SQLTrace.execSQL(db, insert, new Object[]{"a"});
+            SQLTrace.execSQL(db, insert, new Object[]{"b"});
+            SQLTrace.execSQL(db, update);
+            assertEquals(2, SQLTrace.longForQuery(db, "SELECT COUNT(*) FROM Orders;", null));
+
+            // rows are those of the statement itself, not of the summary triggers it fires
+            StatementStats insertStats = null;
+            StatementStats updateStats = null;
+            for (StatementStats stats : SQLTrace.getStatistics()) {
+                if (stats.getSql().equals(insert)) {
+                    insertStats = stats;
+                } else if (stats.getSql().equals(update)) {
+                    updateStats = stats;
+                }
+            }
+            assertEquals(2, insertStats.getCount());
+            assertEquals(2, insertStats.getRows());
+            assertEquals(1, updateStats.getCount());
+            assertEquals(2, updateStats.getRows());
+
+            long bucketTotal = 0;
+            for (int i = 0; i < StatementStats.BUCKET_COUNT; ++i) {
+                bucketTotal += insertStats.getBucketCount(i);
+            }
+            assertEquals(2, bucketTotal);
+            assertTrue(insertStats.getMaxNanos() <= insertStats.getTotalNanos());
+            assertTrue(insertStats.getPercentileMicros(50) <= insertStats.getPercentileMicros(100));
+            assertTrue(insertStats.getPercentileMicros(100) * 1000 >= insertStats.getMaxNanos());
+
+            // a query is recorded once its cursor is closed, with the rows that were read
+            String select = "SELECT customer FROM Orders ORDER BY customer;";
+            Cursor cursor = SQLTrace.rawQuery(db, select, (String[]) null);
+            assertTrue(cursor.moveToFirst());
+            for (StatementStats stats : SQLTrace.getStatistics()) {
+                assertFalse(stats.getSql().equals(select));
+            }
+            cursor.close();
+            StatementStats selectStats = null;
+            for (StatementStats stats : SQLTrace.getStatistics()) {
+                if (stats.getSql().equals(select)) {
+                    selectStats = stats;
+                }
+            }
+            assertEquals(1, selectStats.getCount());
+            assertEquals(1, selectStats.getRows());
+        } finally {
+            SQLTrace.setEnabled(false);
+            SQLTrace.reset();
+        }
+
+        db.close();
+    }
+
+    public void testSummary() throws JSONException {
+        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_summary));
+        DatabaseManager dbManager = new DatabaseManager(context, new JSONDBSchema(jsonObject), true);
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+
+        assertTrue(DBValidator.tableExists(db, "OrderTotals"));
+
+        db.execSQL("INSERT INTO Orders (customer, amount) VALUES ('a', 10);");
+        db.execSQL("INSERT INTO Orders (customer, amount) VALUES ('a', 5);");
+        db.execSQL("INSERT INTO Orders (customer, amount) VALUES ('b', 7);");
+        assertEquals(Arrays.asList("2", "1"), DBValidator.getValues(db, "OrderTotals", "order_count"));
+        assertEquals(Arrays.asList("15", "7"), DBValidator.getValues(db, "OrderTotals", "total_amount"));
+
+        // moving an order to another customer updates both groups, and empty groups are removed
+        db.execSQL("UPDATE Orders SET customer = 'a', amount = 1 WHERE customer = 'b';");
+        assertEquals(Arrays.asList("a"), DBValidator.getValues(db, "OrderTotals", "customer"));
+        assertEquals(Arrays.asList("16"), DBValidator.getValues(db, "OrderTotals", "total_amount"));
+
+        db.execSQL("DELETE FROM Orders;");
+        assertNull(DBValidator.getValues(db, "OrderTotals", "customer"));
+
+        db.close();
+    }
+
+    public void testWithoutRowId() throws JSONException {
+        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_without_rowid));
+        DatabaseManager dbManager = new DatabaseManager(context, new JSONDBSchema(jsonObject), true);
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+
+        assertTrue(DBValidator.tableExists(db, "Memberships"));
+
+        ContentValues values = new ContentValues();
+        values.put("group_id", 1);
+        values.put("user_id", 2);
+        values.put("role", "owner");
+        assertTrue(db.insert("Memberships", null, values) != -1);
+
+        // the key covers both columns, so only the exact pair is a duplicate
+        values.put("user_id", 3);
+        assertTrue(db.insert("Memberships", null, values) != -1);
+        assertEquals(-1, db.insert("Memberships", null, values));
+
+        db.close();
+    }
+
+    public void testBackfill() throws JSONException {
+        context.deleteDatabase("test_backfill.db");
+        DatabaseManager dbManager = new DatabaseManager(context,
+            new JSONDBSchema(new JSONObject(getSchema(R.raw.test_backfill_v1))));
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        for (int i = 1; i <= 25; ++i) {
+            db.execSQL("INSERT INTO Orders (price, quantity) VALUES (" + i + ", 2);");
+        }
+        dbManager.close();
+
+        dbManager = new DatabaseManager(context, new JSONDBSchema(new JSONObject(getSchema(R.raw.test_backfill_v2))));
+        BackfillRunner runner = new BackfillRunner(dbManager);
+        runner.setBatchSize(10);
+        final List<Long> progress = new ArrayList<Long>();
+        runner.setProgressListener(new BackfillRunner.ProgressListener() {
+            @Override
+            public void onProgress(int version, String table, long processedRows, long totalRows) {
+                assertEquals(25, totalRows);
+                progress.add(processedRows);
+            }
+        });
+        assertTrue(runner.run());
+        assertEquals(Arrays.asList(10L, 20L, 25L), progress);
+
+        db = dbManager.getWritableDatabase();
+        List<String> totals = DBValidator.getValues(db, "Orders", "total");
+        assertEquals(Arrays.asList("2", "4", "6"), totals.subList(0, 3));
+        assertFalse(totals.contains(null));
+
+        // nothing is left to do the second time
+        progress.clear();
+        assertTrue(runner.run());
+        assertTrue(progress.isEmpty());
+
+        dbManager.close();
+        context.deleteDatabase("test_backfill.db");
+    }
+
+    public void testBackfillWithoutRowId() throws Exception {
+        context.deleteDatabase("test_backfill_without_rowid.db");
+        DatabaseManager dbManager = new DatabaseManager(context,
+            new JSONDBSchema(new JSONObject(getSchema(R.raw.test_backfill_without_rowid_v1))));
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        db.execSQL("INSERT INTO Rates (code, rate) VALUES ('a', 1);");
+        db.execSQL("INSERT INTO Rates (code, rate) VALUES ('b', 2);");
+        db.execSQL("INSERT INTO Rates (code, rate) VALUES ('c', 3);");
+        dbManager.close();
+
+        dbManager = new DatabaseManager(context,
+            new JSONDBSchema(new JSONObject(getSchema(R.raw.test_backfill_without_rowid_v2))));
+        BackfillRunner runner = new BackfillRunner(dbManager);
+        runner.register("doubleRates", new BackfillRunner.Callback() {
+            @Override
+            public void run(SQLiteDatabase db, long fromRowId, long toRowId) {
+                db.execSQL("UPDATE Rates SET doubled = rate * 2 WHERE doubled IS NULL;");
+            }
+        });
+
+        // observers of the table hear about the backfill
+        TableChangeBus bus = new TableChangeBus();
+        final LinkedBlockingQueue<String> changed = new LinkedBlockingQueue<String>();
+        bus.register(new TableChangeBus.TableObserver() {
+            @Override
+            public void onTablesChanged(Set<String> tables) {
+                changed.addAll(tables);
+            }
+        }, "Rates");
+        runner.setChangeBus(bus);
+
+        assertTrue(runner.run());
+        db = dbManager.getWritableDatabase();
+        assertEquals(Arrays.asList("2", "4", "6"), DBValidator.getValues(db, "Rates", "doubled"));
+        assertEquals("Rates", changed.poll(5, TimeUnit.SECONDS));
+
+        bus.shutdown();
+        dbManager.close();
+        context.deleteDatabase("test_backfill_without_rowid.db");
+    }
+
+    public void testWriteExecutor() throws Exception {
+        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_summary));
+        DatabaseManager dbManager = new DatabaseManager(context, new JSONDBSchema(jsonObject), true);
+        WriteExecutor executor = new WriteExecutor(dbManager);
+
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        for (int i = 0; i < 50; ++i) {
+            final ContentValues values = new ContentValues();
+            values.put("customer", i % 2 == 0 ? "a" : "b");
+            values.put("amount", i);
+            futures.add(executor.submit(new WriteExecutor.WriteOperation<Long>() {
+                @Override
+                public Long execute(SQLiteDatabase db) {
+                    return db.insertOrThrow("Orders", null, values);
+                }
+            }));
+        }
+
+        // a failing operation is rolled back alone, customer is NOT NULL
+        Future<Long> failed = executor.submit(new WriteExecutor.WriteOperation<Long>() {
+            @Override
+            public Long execute(SQLiteDatabase db) {
+                db.execSQL("INSERT INTO Orders (amount) VALUES (1000);");
+                return db.insertOrThrow("Orders", null, new ContentValues());
+            }
+        });
+
+        for (Future<Long> future : futures) {
+            assertTrue(future.get() > 0);
+        }
+        try {
+            failed.get();
+            fail();
+        } catch (ExecutionException e) {
+            // expected
+        }
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5000));
+
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        assertEquals(50, DBValidator.getValues(db, "Orders", "amount").size());
+        db.close();
+    }
+
+    public void testWriteExecutorGroupCommit() throws Exception {
+        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_summary));
+        DatabaseManager dbManager = new DatabaseManager(context, new JSONDBSchema(jsonObject), true);
+
+        // the group closes when its sixth operation arrives, not on a timer
+        WriteExecutor executor = new WriteExecutor(dbManager, 6, 10000);
+        List<Future<Long>> futures = new ArrayList<Future<Long>>();
+        futures.add(executor.submit(insertOrder("a")));
+        futures.add(executor.submit(insertOrder("b")));
+        futures.add(executor.submit(new WriteExecutor.WriteOperation<Long>() {
+            @Override
+            public Long execute(SQLiteDatabase db) {
+                db.execSQL("INSERT INTO Orders (customer, amount) VALUES ('rolled back', 0);");
+                throw new IllegalStateException();
+            }
+        }));
+        futures.add(executor.submit(new WriteExecutor.WriteOperation<Long>() {
+            @Override
+            public Long execute(SQLiteDatabase db) {
+                throw new StackOverflowError();
+            }
+        }));
+        futures.add(executor.submit(insertOrder("c")));
+        futures.add(executor.submit(insertOrder("d")));
+
+        // the failures in the middle are rolled back alone, the others commit together
+        assertTrue(futures.get(0).get() > 0);
+        assertTrue(futures.get(1).get() > 0);
+        try {
+            futures.get(2).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        try {
+            futures.get(3).get();
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof StackOverflowError);
+        }
+        assertTrue(futures.get(4).get() > 0);
+        assertTrue(futures.get(5).get() > 0);
+        assertEquals(1, executor.getCommitCount());
+
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        assertEquals(Arrays.asList("a", "b", "c", "d"), DBValidator.getValues(db, "Orders", "customer"));
+
+        // the writer thread survived the error
+        assertTrue(executor.submit(insertOrder("e")).get() > 0);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(15000));
+        db.close();
+    }
+
+    private static WriteExecutor.WriteOperation<Long> insertOrder(final String customer) {
+        return new WriteExecutor.WriteOperation<Long>() {
+            @Override
+            public Long execute(SQLiteDatabase db) {
+                ContentValues values = new ContentValues();
+                values.put("customer", customer);
+                return db.insertOrThrow("Orders", null, values);
+            }
+        };
+    }
+
+    public void testObservableQuery() throws Exception {
+        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_summary));
+        DBSchema schema = new JSONDBSchema(jsonObject);
+        DatabaseManager dbManager = new DatabaseManager(context, schema, true);
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        // the debounce interval is never reached, changes are delivered by flush()
+        TableChangeBus bus = new TableChangeBus(60000);
+
+        final LinkedBlockingQueue<Integer> counts = new LinkedBlockingQueue<Integer>();
+        ObservableQuery query = new ObservableQuery(bus, db, "SELECT * FROM Orders", null, new ObservableQuery.Listener() {
+            @Override
+            public void onResult(Cursor cursor) {
+                counts.add(cursor.getCount());
+                cursor.close();
+            }
+        }, "Orders");
+        query.start();
+        assertEquals(Integer.valueOf(0), counts.poll(5, TimeUnit.SECONDS));
+
+        // two writes within the debounce interval cause a single re-run
+        JSONObject rows = new JSONObject("{\"rows\": [{\"customer\": \"a\", \"amount\": 1}]}");
+        assertTrue(JSONAdapter.fill(db, schema, "Orders", rows, null, bus));
+        assertTrue(JSONAdapter.fill(db, schema, "Orders", rows, null, bus));
+        bus.flush();
+        assertEquals(Integer.valueOf(2), counts.poll());
+        assertNull(counts.poll());
+
+        // writes by other means are picked up by tracking triggers, changes to other tables are ignored
+        bus.track(db, Arrays.asList("Orders"));
+        db.execSQL("DELETE FROM OrderTotals;");
+        db.execSQL("INSERT INTO Orders (customer, amount) VALUES ('b', 2);");
+        bus.checkTracked(db);
+        bus.flush();
+        assertEquals(Integer.valueOf(3), counts.poll());
+        assertNull(counts.poll());
+
+        // a WriteExecutor reports every table its transaction touched, including those written by triggers
+        final LinkedBlockingQueue<String> changed = new LinkedBlockingQueue<String>();
+        bus.register(new TableChangeBus.TableObserver() {
+            @Override
+            public void onTablesChanged(Set<String> tables) {
+                changed.addAll(tables);
+            }
+        }, "Orders", "OrderTotals");
+        WriteExecutor executor = new WriteExecutor(dbManager);
+        executor.setChangeBus(bus);
+        assertTrue(executor.submit(insertOrder("c")).get() > 0);
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5000));
+        bus.flush();
+        assertEquals(new HashSet<String>(Arrays.asList("Orders", "OrderTotals")), new HashSet<String>(changed));
+        assertEquals(Integer.valueOf(4), counts.poll());
+
+        query.stop();
+        bus.shutdown();
+
+        // changes reported after shutdown are dropped rather than rejected
+        changed.clear();
+        bus.notifyChanged("Orders");
+        bus.flush();
+        assertNull(changed.poll());
+        db.close();
+    }
+
+    public void testDatabaseStartup() throws Exception {
+        DBSchema summarySchema = new JSONDBSchema(new JSONObject(getSchema(R.raw.test_summary)));
+        DBSchema blobSchema = new JSONDBSchema(new JSONObject(getSchema(R.raw.test_blob)));
+        context.deleteDatabase(summarySchema.getDatabaseName());
+        context.deleteDatabase(blobSchema.getDatabaseName());
+
+        DatabaseStartup startup = new DatabaseStartup(context, 2);
+        startup.add(summarySchema);
+        startup.add(blobSchema);
+        List<DatabaseStartup.Result> results = startup.run();
+
+        assertEquals(2, results.size());
+        assertTrue(results.get(0).getSchema() == summarySchema);
+        assertTrue(results.get(1).getSchema() == blobSchema);
+        for (DatabaseStartup.Result result : results) {
+            assertNull(result.getError());
+            assertTrue(result.getOpenNanos() > 0);
+            assertTrue(result.getManager().getWritableDatabase().isOpen());
+            result.getManager().close();
+            context.deleteDatabase(result.getSchema().getDatabaseName());
+        }
+    }
+
+    public void testForeignKeys() throws JSONException {
+        context.deleteDatabase("test_foreign_keys.db");
+        DatabaseManager dbManager = new DatabaseManager(context,
+            new JSONDBSchema(new JSONObject(getSchema(R.raw.test_foreign_keys_v1))));
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        db.execSQL("INSERT INTO Classes (title) VALUES ('Math');");
+        db.execSQL("INSERT INTO Classes (title) VALUES ('Art');");
+        db.execSQL("INSERT INTO Students (name, class_id) VALUES ('a', 1);");
+        db.execSQL("INSERT INTO Students (name, class_id) VALUES ('b', 2);");
+        db.execSQL("ANALYZE;");
+        dbManager.close();
+
+        // migrating the parent table keeps the references to it, and its rows
+        dbManager = new DatabaseManager(context, new JSONDBSchema(new JSONObject(getSchema(R.raw.test_foreign_keys_v2))));
+        db = dbManager.getWritableDatabase();
+        assertEquals(2, db.getVersion());
+        assertTrue(DBValidator.columnExists(db, "Classes", "room"));
+        assertEquals(Arrays.asList("a", "b"), DBValidator.getValues(db, "Students", "name"));
+
+        // statistics gathered by ANALYZE are not taken for a table of the schema, and survive the upgrade
+        assertTrue(DBValidator.tableExists(db, "sqlite_stat1"));
+
+        // foreign keys are enforced after the upgrade
+        db.execSQL("DELETE FROM Classes WHERE title = 'Math';");
+        assertEquals(Arrays.asList("b"), DBValidator.getValues(db, "Students", "name"));
+        ContentValues values = new ContentValues();
+        values.put("name", "c");
+        values.put("class_id", 42);
+        assertEquals(-1, db.insert("Students", null, values));
+
+        // an upgrade refuses to run on a connection that enforces foreign keys
+        try {
+            dbManager.onUpgrade(db, 1, 2);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertEquals(Arrays.asList("b"), DBValidator.getValues(db, "Students", "name"));
+
+        dbManager.close();
+        context.deleteDatabase("test_foreign_keys.db");
+    }
+
+    public void testForeignKeyViolationFailsUpgrade() throws JSONException {
+        context.deleteDatabase("test_foreign_keys.db");
+        DatabaseManager dbManager = new DatabaseManager(context,
+            new JSONDBSchema(new JSONObject(getSchema(R.raw.test_foreign_keys_v1))));
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        db.execSQL("PRAGMA foreign_keys = OFF;");
+        db.execSQL("INSERT INTO Classes (title) VALUES ('Math');");
+        db.execSQL("INSERT INTO Students (name, class_id) VALUES ('a', 1);");
+        db.execSQL("INSERT INTO Students (name, class_id) VALUES ('orphan', 42);");
+        dbManager.close();
+
+        // the migration is rolled back, and the caller is told so
+        dbManager = new DatabaseManager(context, new JSONDBSchema(new JSONObject(getSchema(R.raw.test_foreign_keys_v2))));
+        try {
+            dbManager.getWritableDatabase();
+            fail();
+        } catch (SQLiteException e) {
+            // expected
+        }
+        dbManager.close();
+
+        dbManager = new DatabaseManager(context,
+            new JSONDBSchema(new JSONObject(getSchema(R.raw.test_foreign_keys_v1))));
+        db = dbManager.getWritableDatabase();
+        assertEquals(1, db.getVersion());
+        assertFalse(DBValidator.columnExists(db, "Classes", "room"));
+        dbManager.close();
+        context.deleteDatabase("test_foreign_keys.db");
+    }
+
+    public void testParallelExportWal() throws Exception {
+        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_summary));
+        DBSchema schema = new JSONDBSchema(jsonObject);
+        context.deleteDatabase(schema.getDatabaseName());
+        DatabaseManager dbManager = new DatabaseManager(context, schema);
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+
+        // write-ahead logging needs API 11, the project builds against API 8
+        Method enableWal;
+        try {
+            enableWal = SQLiteDatabase.class.getMethod("enableWriteAheadLogging");
+        } catch (NoSuchMethodException e) {
+            dbManager.close();
+            return;
+        }
+        assertEquals(Boolean.TRUE, enableWal.invoke(db));
+        for (int i = 0; i < 25; ++i) {
+            db.execSQL("INSERT INTO Orders (customer, amount) VALUES ('a', " + i + ");");
+        }
+
+        // every part is read by a worker, on its own connection
+        ParallelExporter exporter = new ParallelExporter(db, schema);
+        exporter.setThreads(3);
+        exporter.setRowsPerPart(10);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.export(out);
+        assertEquals(3, exporter.getWorkerPartCount());
+
+        int rows = 0;
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        while (zip.getNextEntry() != null) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(zip, "UTF-8"));
+            rows += new JSONObject(reader.readLine()).getJSONArray("rows").length();
+        }
+        assertEquals(25, rows);
+
+        dbManager.close();
+        context.deleteDatabase(schema.getDatabaseName());
+    }
+
+    public void testParallelExport() throws Exception {
+        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_summary));
+        DBSchema schema = new JSONDBSchema(jsonObject);
+        DatabaseManager dbManager = new DatabaseManager(context, schema, true);
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        for (int i = 0; i < 25; ++i) {
+            db.execSQL("INSERT INTO Orders (customer, amount) VALUES ('a', " + i + ");");
+        }
+
+        ParallelExporter exporter = new ParallelExporter(db, schema);
+        exporter.setRowsPerPart(10);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        exporter.export(out);
+
+        // the table is split into rowid ranges, which together hold every row once
+        List<String> names = new ArrayList<String>();
+        int rows = 0;
+        ZipInputStream zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()));
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            names.add(entry.getName());
+            BufferedReader reader = new BufferedReader(new InputStreamReader(zip, "UTF-8"));
+            JSONObject part = new JSONObject(reader.readLine());
+            assertEquals("Orders", part.getString("name"));
+            rows += part.getJSONArray("rows").length();
+        }
+        assertEquals(Arrays.asList("Orders.0.json", "Orders.1.json", "Orders.2.json"), names);
+        assertEquals(25, rows);
+
+        // an in-memory database has no WAL, the parts are read on the given connection
+        assertEquals(0, exporter.getWorkerPartCount());
+
+        db.close();
+    }
+
+    public void testPagedTable() throws JSONException {
+        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_query_plan));
+        DBSchema schema = new JSONDBSchema(jsonObject);
+        DatabaseManager dbManager = new DatabaseManager(context, schema, true);
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        for (int i = 0; i < 25; ++i) {
+            // column1 sorts in the reverse order of _id
+            db.execSQL("INSERT INTO TestTable (column1) VALUES ('" + (char) ('z' - i) + "');");
+        }
+
+        SQLTrace.reset();
+        SQLTrace.setEnabled(true);
+        try {
+            PagedTable byId = new PagedTable(db, schema, "TestTable", 10);
+            assertEquals(10, byId.getPage(0).size());
+            assertEquals("1", byId.getPage(0).get(0).getAsString("_id"));
+            assertEquals(5, byId.getPage(2).size());
+            assertEquals("21", byId.getPage(2).get(0).getAsString("_id"));
+            assertTrue(byId.getPage(3).isEmpty());
+            byId.close();
+
+            // a page can be requested before the pages leading to it
+            PagedTable byColumn1 = new PagedTable(db, schema, "TestTable", "TestTable_column1_idx", 10);
+            assertEquals("1", byColumn1.getPage(2).get(4).getAsString("_id"));
+            assertEquals("15", byColumn1.getPage(1).get(0).getAsString("_id"));
+            byColumn1.close();
+
+            // pages are still served after closing, without prefetching
+            assertEquals("25", byColumn1.getPage(0).get(0).getAsString("_id"));
+
+            // every page after the first is found by searching the index, not by scanning it
+            int keysetQueries = 0;
+            for (StatementStats stats : SQLTrace.getStatistics()) {
+                if (stats.getSql().contains(" WHERE ")) {
+                    ++keysetQueries;
+                    for (String detail : QueryPlanVerifier.explain(db, stats.getSql())) {
+                        assertTrue(detail, detail.startsWith("SEARCH "));
+                    }
+                }
+            }
+            assertTrue(keysetQueries >= 2);
+        } finally {
+            SQLTrace.setEnabled(false);
+            SQLTrace.reset();
+        }
+
+        db.close();
+
+        // blob columns are read as byte arrays
+        dbManager = new DatabaseManager(context, new JSONDBSchema(new JSONObject(getSchema(R.raw.test_blob))), true);
+        db = dbManager.getWritableDatabase();
+        ContentValues values = new ContentValues();
+        values.put("name", "a");
+        values.put("thumbnail", new byte[]{1, 2, 3});
+        db.insertOrThrow("Images", null, values);
+        PagedTable images = new PagedTable(db, new JSONDBSchema(new JSONObject(getSchema(R.raw.test_blob))), "Images", 10);
+        assertTrue(Arrays.equals(new byte[]{1, 2, 3}, images.getPage(0).get(0).getAsByteArray("thumbnail")));
+        images.close();
+        db.close();
+    }
+
+    public void testPagedTableTypedKeys() throws JSONException {
+        DBSchema schema = new JSONDBSchema(new JSONObject(getSchema(R.raw.test_paged)));
+        DatabaseManager dbManager = new DatabaseManager(context, schema, true);
+        SQLiteDatabase db = dbManager.getWritableDatabase();
+        for (int i = 0; i < 25; ++i) {
+            // the values differ only past the 15 digits a string keeps, the tags are integers without affinity
+            ContentValues values = new ContentValues();
+            values.put("value", 1.0 + i * Math.ulp(1.0));
+            values.put("tag", i);
+            db.insertOrThrow("Readings", null, values);
+        }
+
+        String[] indexes = {"Readings_value_idx", "Readings_tag_idx"};
+        for (String index : indexes) {
+            PagedTable table = new PagedTable(db, schema, "Readings", index, 10);
+            List<String> ids = new ArrayList<String>();
+            for (int page = 0; page < 4; ++page) {
+                for (ContentValues row : table.getPage(page)) {
+                    ids.add(row.getAsString("_id"));
+                }
+            }
+            table.close();
+            assertEquals(index, 25, ids.size());
+            assertEquals(index, "1", ids.get(0));
+            assertEquals(index, "25", ids.get(24));
+            assertEquals(index, 25, new HashSet<String>(ids).size());
+        }
+
+        db.close();
+    }
+
+    public void testInMemoryCopy() throws JSONException {
+        DBSchema schema = new JSONDBSchema(new JSONObject(getSchema(R.raw.test_summary)));
+        context.deleteDatabase(schema.getDatabaseName());
+        DatabaseManager diskManager = new DatabaseManager(context, schema);
+        SQLiteDatabase db = diskManager.getWritableDatabase();
+        db.execSQL("INSERT INTO Orders (customer, amount) VALUES ('a', 1);");
+        db.execSQL("INSERT INTO Orders (customer, amount) VALUES ('b', 2);");
+        db.execSQL("INSERT INTO Orders (customer, amount) VALUES ('c', 3);");
+        diskManager.close();
+
+        InMemoryCopy copy = new InMemoryCopy(context, schema, "Orders");
+        copy.setSaveOnClose(true);
+        db = copy.open().getWritableDatabase();
+        assertEquals(Arrays.asList("a", "b", "c"), DBValidator.getValues(db, "Orders", "customer"));
+        assertEquals(Arrays.asList("a", "b", "c"), DBValidator.getValues(db, "OrderTotals", "customer"));
+
+        db.execSQL("UPDATE Orders SET amount = 10 WHERE customer = 'a';");
+        db.execSQL("DELETE FROM Orders WHERE customer = 'b';");
+        db.execSQL("INSERT INTO Orders (customer, amount) VALUES ('d', 4);");
+        copy.close();
+
+        // only the changes are written back, and the disk's own summary follows them
+        diskManager = new DatabaseManager(context, schema);
+        db = diskManager.getWritableDatabase();
+        assertEquals(Arrays.asList("a", "c", "d"), DBValidator.getValues(db, "Orders", "customer"));
+        assertEquals(Arrays.asList("10", "3", "4"), DBValidator.getValues(db, "Orders", "amount"));
+        assertEquals(Arrays.asList("10", "3", "4"), DBValidator.getValues(db, "OrderTotals", "total_amount"));
+        diskManager.close();
+        context.deleteDatabase(schema.getDatabaseName());
+    }
+
+    public void testInMemoryCopyUniqueSwap() throws JSONException {
+        DBSchema schema = new JSONDBSchema(new JSONObject(getSchema(R.raw.test_unique)));
+        context.deleteDatabase(schema.getDatabaseName());
+        DatabaseManager diskManager = new DatabaseManager(context, schema);
+        SQLiteDatabase db = diskManager.getWritableDatabase();
+        db.execSQL("INSERT INTO Users (email, points) VALUES ('x', 1);");
+        db.execSQL("INSERT INTO Users (email, points) VALUES ('y', 2);");
+        diskManager.close();
+
+        InMemoryCopy copy = new InMemoryCopy(context, schema);
+        try {
+            copy.save();
+            fail();
+        } catch (IllegalStateException e) {
+            // not open yet
+        }
+
+        // the two rows swap their emails, which no single update of the disk rows can do
+        db = copy.open().getWritableDatabase();
+        db.execSQL("UPDATE Users SET email = 'z' WHERE _id = 1;");
+        db.execSQL("UPDATE Users SET email = 'x' WHERE _id = 2;");
+        db.execSQL("UPDATE Users SET email = 'y' WHERE _id = 1;");
+        copy.save();
+        copy.close();
+        try {
+            copy.save();
+            fail();
+        } catch (IllegalStateException e) {
+            // closed
+        }
+
+        diskManager = new DatabaseManager(context, schema);
+        db = diskManager.getWritableDatabase();
+        assertEquals(Arrays.asList("1", "2"), DBValidator.getValues(db, "Users", "_id"));
+        assertEquals(Arrays.asList("y", "x"), DBValidator.getValues(db, "Users", "email"));
+
+        // the disk's summary saw each swapped row leave its old group once
+        Cursor cursor = db.rawQuery("SELECT email, user_count, total_points FROM PointsByEmail ORDER BY email;", null);
+        List<String> totals = new ArrayList<String>();
+        while (cursor.moveToNext()) {
+            totals.add(cursor.getString(0) + ":" + cursor.getString(1) + ":" + cursor.getString(2));
+        }
+        cursor.close();
+        assertEquals(Arrays.asList("x:1:2", "y:1:1"), totals);
+        diskManager.close();
+        context.deleteDatabase(schema.getDatabaseName());
+    }
+
+    public void testInMemoryCopyForeignKeys() throws JSONException {
+        DBSchema schema = new JSONDBSchema(new JSONObject(getSchema(R.raw.test_foreign_keys_v1)));
+        context.deleteDatabase(schema.getDatabaseName());
+        DatabaseManager diskManager = new DatabaseManager(context, schema);
+        SQLiteDatabase db = diskManager.getWritableDatabase();
+        db.execSQL("INSERT INTO Classes (title) VALUES ('Math');");
+        db.execSQL("INSERT INTO Students (name, class_id) VALUES ('a', 1);");
+        diskManager.close();
+
+        // an orphan written to the in-memory copy is caught before it reaches the disk
+        InMemoryCopy copy = new InMemoryCopy(context, schema);
+        db = copy.open().getWritableDatabase();
+        db.execSQL("PRAGMA foreign_keys = OFF;");
+        db.execSQL("INSERT INTO Students (name, class_id) VALUES ('b', 42);");
+        try {
+            copy.save();
+            fail();
+        } catch (SQLiteException e) {
+            // expected
+        }
+        copy.close();
+
+        diskManager = new DatabaseManager(context, schema);
+        db = diskManager.getWritableDatabase();
+        assertEquals(Arrays.asList("a"), DBValidator.getValues(db, "Students", "name"));
+        diskManager.close();
+        context.deleteDatabase(schema.getDatabaseName());
+    }
+
 //    public void testMigrationDataFillData() {
 //        JSONObject jsonObject = new JSONObject(getSchema(R.raw.test_migration_data_v1));
 //        DatabaseManager dbManager = new DatabaseManager(context, new JSONDBSchema(jsonObject), true);